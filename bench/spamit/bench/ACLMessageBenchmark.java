@@ -0,0 +1,94 @@
+package spamit.bench;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building a spam message addressed to many MCA's, of cloning it
+ * (JADE clones a message on send to deliver it to each receiver), of
+ * stamping a reused message, which is what the SA does on every send, and of
+ * reading its content as a String or as the bytes shared with the sender.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ACLMessageBenchmark {
+
+    private static final MethodHandle STAMP = DefaultPackage.method("SpamMessages", "stamp", ACLMessage.class, long.class);
+
+    @Param({"1", "10", "100"})
+    public int receivers;
+
+    @Param({"100", "10000"})
+    public int size;
+
+    private AID[] mcas;
+    private byte[] payload;
+    private ACLMessage msg;
+    private long sequence = 0;
+
+    @Setup
+    public void setup() {
+        mcas = new AID[receivers];
+        for (int i = 0; i < receivers; i++) {
+            mcas[i] = new AID("MessageConsumingAgent" + i, AID.ISLOCALNAME);
+        }
+        payload = new byte[size];
+        msg = build();
+    }
+
+    private ACLMessage build() {
+        ACLMessage spam = new ACLMessage(ACLMessage.INFORM);
+        for (AID mca : mcas) {
+            spam.addReceiver(mca);
+        }
+        spam.setLanguage("spam");
+        spam.setByteSequenceContent(payload);
+        return spam;
+    }
+
+    @Benchmark
+    public ACLMessage construct() {
+        return build();
+    }
+
+    @Benchmark
+    public Object cloneMessage() {
+        return msg.clone();
+    }
+
+    @Benchmark
+    public ACLMessage stamp() throws Throwable {
+        STAMP.invokeExact(msg, sequence++);
+        return msg;
+    }
+
+    @Benchmark
+    public String stringContent() {
+        // The bytes are decoded on every getContent() of a byte sequence content
+        return msg.getContent();
+    }
+
+    @Benchmark
+    public byte[] byteContent() {
+        // The array of the sender itself, what the MCA's read
+        return msg.getByteSequenceContent();
+    }
+}
@@ -0,0 +1,141 @@
+package spamit.bench;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.wrapper.AgentController;
+import jade.wrapper.StaleProxyException;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the ExperimentMasterAgent in EndToEndBenchmark, driven by the
+ * benchmark thread through O2A objects: tasks run on the agent thread. It
+ * must be named 'ExperimentMasterAgent', which is where SA's take their
+ * START from and MCA's send their DONE to.
+ */
+public class BenchmarkMasterAgent extends Agent {
+
+    private static final long serialVersionUID = 6151309216452781739L;
+
+    private static final MethodHandle FROM_BYTES = DefaultPackage.method("StatisticsRecord", "fromBytes", byte[].class);
+    private static final MethodHandle KIND = DefaultPackage.getter("StatisticsRecord", "kind");
+    private static final MethodHandle PROCESSED = DefaultPackage.getter("StatisticsRecord", "numOfMessagesProcessed");
+
+    private final int numberOfSpammerAgents;
+    private final int numberOfMessageConsumingAgents;
+    private final CountDownLatch done;
+    private final AtomicLong numOfMessagesConsumed = new AtomicLong();
+
+    BenchmarkMasterAgent(int numberOfSpammerAgents, int numberOfMessageConsumingAgents) {
+        this.numberOfSpammerAgents = numberOfSpammerAgents;
+        this.numberOfMessageConsumingAgents = numberOfMessageConsumingAgents;
+        this.done = new CountDownLatch(numberOfMessageConsumingAgents);
+    }
+
+    @Override
+    protected void setup() {
+        setEnabledO2ACommunication(true, 0);
+        addBehaviour(new CyclicBehaviour(this) {
+            private static final long serialVersionUID = -2318870478262102571L;
+            private final MessageTemplate doneTemplate = MessageTemplate.and(
+                    MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                    MessageTemplate.MatchLanguage("spam-statistics"));
+
+            @Override
+            public void action() {
+                Object task = myAgent.getO2AObject();
+                if (task != null) {
+                    ((Runnable) task).run();
+                    return;
+                }
+                ACLMessage msg = myAgent.receive(doneTemplate);
+                if (msg == null) {
+                    block();
+                } else {
+                    countDone(msg);
+                }
+            }
+        });
+    }
+
+    /** Account the statistics record in the message if it is the DONE of a MCA */
+    private void countDone(ACLMessage msg) {
+        try {
+            Object record = FROM_BYTES.invokeExact(msg.getByteSequenceContent());
+            if (KIND.invokeExact(record).toString().equals("DONE")) {
+                numOfMessagesConsumed.addAndGet((long) PROCESSED.invokeExact(record));
+                done.countDown();
+            }
+        } catch (Throwable e) {
+            throw new IllegalStateException("Malformed statistics record", e);
+        }
+    }
+
+    /**
+     * Wait until the DF lists 'count' agents of the service type.
+     */
+    void awaitRegistered(AgentController self, final String type, final int count) throws Exception {
+        call(self, new Callable<Void>() {
+            @Override
+            public Void call() throws FIPAException, InterruptedException {
+                ServiceDescription sd = new ServiceDescription();
+                sd.setType(type);
+                DFAgentDescription dfd = new DFAgentDescription();
+                dfd.addServices(sd);
+                while (DFService.search(BenchmarkMasterAgent.this, dfd).length < count) {
+                    Thread.sleep(10);
+                }
+                return null;
+            }
+        }, 60);
+    }
+
+    /**
+     * Send START to the SA's and wait for the DONE of all MCA's.
+     * @return the number of messages consumed by all MCA's
+     */
+    long runExperiment(AgentController self, long timeoutSeconds) throws Exception {
+        call(self, new Callable<Void>() {
+            @Override
+            public Void call() {
+                ACLMessage startMsg = new ACLMessage(ACLMessage.REQUEST);
+                for (int i = 0; i < numberOfSpammerAgents; i++) {
+                    startMsg.addReceiver(new AID(EndToEndBenchmark.SPAMMER_AGENT + i, AID.ISLOCALNAME));
+                }
+                startMsg.setContent("start");
+                // SA's wait until the DF has notified them of this many MCA's
+                startMsg.addUserDefinedParameter("spamit-consumers", Integer.toString(numberOfMessageConsumingAgents));
+                send(startMsg);
+                return null;
+            }
+        }, timeoutSeconds);
+        if (!done.await(timeoutSeconds, TimeUnit.SECONDS)) {
+            throw new TimeoutException((numberOfMessageConsumingAgents - done.getCount()) + " of "
+                    + numberOfMessageConsumingAgents + " MCA's done after " + timeoutSeconds + "s");
+        }
+        return numOfMessagesConsumed.get();
+    }
+
+    private static <T> T call(AgentController self, Callable<T> task, long timeoutSeconds) throws Exception {
+        FutureTask<T> future = new FutureTask<>(task);
+        try {
+            self.putO2AObject(future, AgentController.ASYNC);
+        } catch (StaleProxyException e) {
+            throw new IllegalStateException("The master agent is gone", e);
+        }
+        return future.get(timeoutSeconds, TimeUnit.SECONDS);
+    }
+}
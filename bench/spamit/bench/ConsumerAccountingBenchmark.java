@@ -0,0 +1,111 @@
+package spamit.bench;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message accounting of the MessageConsumingBehaviour of the MCA:
+ * sender register, ordering check and latency histograms, compared with the
+ * HashMap of boxed counters it replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConsumerAccountingBenchmark {
+
+    private static final MethodHandle NEW_REGISTER = DefaultPackage.constructor("SenderRegister", int.class, int.class);
+    private static final MethodHandle SLOT_OF = DefaultPackage.method("SenderRegister", "slotOf", AID.class);
+    private static final MethodHandle ADD = DefaultPackage.method("SenderRegister", "add", int.class, int.class);
+    private static final MethodHandle CHECK_ORDER = DefaultPackage.method("SenderRegister", "checkOrder", int.class, long.class);
+    private static final MethodHandle IS_COMPLETE = DefaultPackage.method("SenderRegister", "isComplete", int.class);
+    private static final MethodHandle NEW_HISTOGRAM = DefaultPackage.constructor("LatencyHistogram");
+    private static final MethodHandle RECORD = DefaultPackage.method("LatencyHistogram", "record", long.class);
+    private static final MethodHandle STAMP = DefaultPackage.method("SpamMessages", "stamp", ACLMessage.class, long.class);
+    private static final MethodHandle SEQUENCE_OF = DefaultPackage.method("SpamMessages", "sequenceOf", ACLMessage.class);
+    private static final MethodHandle START_TIME_OF = DefaultPackage.method("SpamMessages", "startTimeOf", ACLMessage.class);
+    private static final MethodHandle CURRENT_TIME_MICROS = DefaultPackage.method("SpamMessages", "currentTimeMicros");
+    private static final MethodHandle PAYLOAD_COUNT = DefaultPackage.method("SpamBatch", "payloadCount", ACLMessage.class);
+
+    /** Number of SA's, whose messages arrive interleaved */
+    @Param({"1", "16", "256"})
+    public int senders;
+
+    private ACLMessage[] messages;
+    private int next = 0;
+    private Object register;
+    private Object processTimes;
+    private Object endToEndTimes;
+    private Map<String, Integer> counters;
+
+    @Setup
+    public void setup() throws Throwable {
+        messages = new ACLMessage[senders * 16];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new ACLMessage(ACLMessage.INFORM);
+            messages[i].setSender(new AID("SpammerAgent" + i % senders, AID.ISLOCALNAME));
+            messages[i].setLanguage("spam");
+            STAMP.invokeExact(messages[i], (long) (i / senders));
+        }
+        register = NEW_REGISTER.invokeExact(senders, Integer.MAX_VALUE);
+        processTimes = NEW_HISTOGRAM.invokeExact();
+        endToEndTimes = NEW_HISTOGRAM.invokeExact();
+        counters = new HashMap<>();
+    }
+
+    private ACLMessage nextMessage() {
+        ACLMessage msg = messages[next];
+        next = next + 1 < messages.length ? next + 1 : 0;
+        return msg;
+    }
+
+    @Benchmark
+    public boolean register() throws Throwable {
+        long initial = System.nanoTime();
+        ACLMessage msg = nextMessage();
+        int slot = (int) SLOT_OF.invokeExact(register, msg.getSender());
+        ADD.invokeExact(register, slot, (int) PAYLOAD_COUNT.invokeExact(msg));
+        RECORD.invokeExact(processTimes, System.nanoTime() - initial);
+        long startTime = (long) START_TIME_OF.invokeExact(msg);
+        RECORD.invokeExact(endToEndTimes, ((long) CURRENT_TIME_MICROS.invokeExact() - startTime) * 1000);
+        boolean inOrder = (boolean) CHECK_ORDER.invokeExact(register, slot, (long) SEQUENCE_OF.invokeExact(msg));
+        // done() is evaluated after every action()
+        return inOrder & (boolean) IS_COMPLETE.invokeExact(register, senders);
+    }
+
+    /** Accounting before SenderRegister: a boxed counter per sender name, all scanned by done() */
+    @Benchmark
+    public boolean hashMap() {
+        ACLMessage msg = nextMessage();
+        String sender = msg.getSender().getName();
+        Integer received = counters.get(sender);
+        counters.put(sender, received != null ? received + 1 : 1);
+        if (counters.size() != senders) {
+            return false;
+        }
+        for (int count : counters.values()) {
+            if (count != Integer.MAX_VALUE) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
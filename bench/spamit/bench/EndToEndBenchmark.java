@@ -0,0 +1,114 @@
+package spamit.bench;
+
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+import jade.wrapper.AgentController;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Time of a whole experiment run in an in-process JADE main container: the
+ * SA's send 'messages' messages each to all MCA's, from the START message
+ * to the DONE of every MCA. A fresh container and agents are set up for
+ * each run, outside of the measured time. Messages per second are
+ * spammers * consumers * messages divided by the reported time.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class EndToEndBenchmark {
+
+    static final String SPAMMER_AGENT = "SpammerAgent";
+    private static final String MESSAGE_CONSUMING_AGENT = "MessageConsumingAgent";
+    private static final long TIMEOUT_SECONDS = 300;
+
+    /** Class of the MCA's */
+    @Param({"MessageConsumingAgent", "MessageConsumingAgentParallel", "MessageConsumingAgentPriority"})
+    public String consumer;
+
+    @Param({"2"})
+    public int spammers;
+
+    @Param({"2"})
+    public int consumers;
+
+    /** Messages sent by each SA */
+    @Param({"10000"})
+    public int messages;
+
+    @Param({"100"})
+    public int size;
+
+    @Param({"1", "10"})
+    public int batch;
+
+    /** Each container gets its own port, as the previous ones may not be released yet */
+    private int port = 21099;
+    private AgentContainer container;
+    private BenchmarkMasterAgent master;
+    private AgentController masterController;
+
+    @Setup(Level.Trial)
+    public void quietJade() {
+        Logger.getLogger("").setLevel(java.util.logging.Level.WARNING);
+        Runtime.instance().setCloseVM(false);
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() throws Exception {
+        Profile profile = new ProfileImpl(null, port, "SpamItBenchmark" + port, true);
+        profile.setParameter(Profile.GUI, "false");
+        profile.setParameter(Profile.NO_MTP, "true");
+        port++;
+        container = Runtime.instance().createMainContainer(profile);
+
+        master = new BenchmarkMasterAgent(spammers, consumers);
+        masterController = container.acceptNewAgent("ExperimentMasterAgent", master);
+        masterController.start();
+        // MCA's count the SA's in the DF when they start, so SA's go first
+        for (int i = 0; i < spammers; i++) {
+            container.createNewAgent(SPAMMER_AGENT + i, "SpammerAgent",
+                    new Object[]{Integer.toString(messages), Integer.toString(size), "batch=" + batch}).start();
+        }
+        master.awaitRegistered(masterController, "SpammerAgent", spammers);
+        for (int i = 0; i < consumers; i++) {
+            container.createNewAgent(MESSAGE_CONSUMING_AGENT + i, consumer,
+                    new Object[]{Integer.toString(messages), "log=off"}).start();
+        }
+        master.awaitRegistered(masterController, "MessageConsumingAgent", consumers);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws Exception {
+        container.kill();
+    }
+
+    @Benchmark
+    public long experiment() throws Exception {
+        long consumed = master.runExperiment(masterController, TIMEOUT_SECONDS);
+        if (consumed != (long) spammers * consumers * messages) {
+            throw new IllegalStateException("Expected " + (long) spammers * consumers * messages
+                    + " messages consumed but got " + consumed);
+        }
+        return consumed;
+    }
+}
@@ -0,0 +1,186 @@
+package spamit.bench;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.wrapper.AgentContainer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Time for an agent to consume a deep mailbox of 'depth' spam messages, as
+ * the consuming behaviour of a MCA does when SA's outpace it: one message per
+ * run of the behaviour (drain=1) against several (see the drain option of
+ * MessageConsumingAgent), with the template built on every run as the MCA's
+ * did or the one of SpamMessages built once. The time per message is the
+ * reported time divided by depth; the difference between drain values is the
+ * cost of going through the scheduler of the agent for each message.
+ * 'noise' messages the template does not match stay at the head of the
+ * mailbox, as DF notifications do between two updates of a DirectoryCache,
+ * so that receive() runs the template against them before each match.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class MailboxDrainBenchmark {
+
+    private static final MethodHandle TEMPLATE = DefaultPackage.getter("SpamMessages", "TEMPLATE");
+    private static final long TIMEOUT_SECONDS = 60;
+
+    /** Messages processed on each run of the behaviour */
+    @Param({"1", "64"})
+    public int drain;
+
+    /** Messages in the mailbox when the agent starts consuming */
+    @Param({"1000", "100000"})
+    public int depth;
+
+    /** composite: AND of performative and language built on each run, direct: SpamMessages.TEMPLATE */
+    @Param({"composite", "direct"})
+    public String template;
+
+    @Param({"0", "10"})
+    public int noise;
+
+    private AgentContainer container;
+    private DrainingAgent agent;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Logger.getLogger("").setLevel(java.util.logging.Level.WARNING);
+        Runtime.instance().setCloseVM(false);
+        Profile profile = new ProfileImpl(null, 22099, "SpamItMailboxBenchmark", true);
+        profile.setParameter(Profile.GUI, "false");
+        profile.setParameter(Profile.NO_MTP, "true");
+        container = Runtime.instance().createMainContainer(profile);
+        agent = new DrainingAgent(template.equals("direct") ? (MessageTemplate) TEMPLATE.invoke() : null, drain);
+        container.acceptNewAgent("MessageConsumingAgent", agent).start();
+        for (int i = 0; i < noise; i++) {
+            ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+            msg.setSender(new AID("df", AID.ISLOCALNAME));
+            msg.setConversationId("directory-SpammerAgent");
+            msg.setContent("notification");
+            agent.postMessage(msg);
+        }
+    }
+
+    /** Fill the mailbox while the agent is not consuming, all but the message that starts it */
+    @Setup(Level.Invocation)
+    public void fill() {
+        agent.expect(depth);
+        for (int i = 1; i < depth; i++) {
+            agent.postMessage(spam());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        container.kill();
+    }
+
+    @Benchmark
+    public int consume() throws Exception {
+        agent.open();
+        agent.postMessage(spam());
+        if (!agent.drained.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new TimeoutException("Mailbox not drained in " + TIMEOUT_SECONDS + " s");
+        }
+        return depth;
+    }
+
+    private static ACLMessage spam() {
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setSender(new AID("SpammerAgent0", AID.ISLOCALNAME));
+        msg.setLanguage("spam");
+        msg.setByteSequenceContent(new byte[100]);
+        return msg;
+    }
+
+    /**
+     * Consumes spam messages once opened by the benchmark thread, until the
+     * expected ones are received, and counts down 'drained'. While closed it
+     * leaves the messages in the mailbox.
+     */
+    static final class DrainingAgent extends Agent {
+
+        private static final long serialVersionUID = -4468398150284839870L;
+
+        /** Template shared by all runs, or null to build it on each run */
+        private final MessageTemplate template;
+        private final int drain;
+        private volatile boolean open = false;
+        /** Messages left to consume; written by the benchmark thread before opening */
+        private int remaining;
+        volatile CountDownLatch drained;
+
+        DrainingAgent(MessageTemplate template, int drain) {
+            this.template = template;
+            this.drain = drain;
+        }
+
+        void expect(int messages) {
+            remaining = messages;
+            drained = new CountDownLatch(1);
+        }
+
+        void open() {
+            open = true;
+        }
+
+        @Override
+        protected void setup() {
+            addBehaviour(new CyclicBehaviour(this) {
+                private static final long serialVersionUID = 8904376213458017622L;
+
+                @Override
+                public void action() {
+                    if (!open) {
+                        block();
+                        return;
+                    }
+                    MessageTemplate mt = template != null ? template
+                            : MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                                    MessageTemplate.MatchLanguage("spam"));
+                    ACLMessage msg = myAgent.receive(mt);
+                    if (msg == null) {
+                        block();
+                        return;
+                    }
+                    for (int i = 1; msg != null; i++) {
+                        if (--remaining == 0) {
+                            open = false;
+                            drained.countDown();
+                            return;
+                        }
+                        msg = i < drain ? myAgent.receive(mt) : null;
+                    }
+                }
+            });
+        }
+    }
+}
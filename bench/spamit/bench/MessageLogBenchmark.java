@@ -0,0 +1,97 @@
+package spamit.bench;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import jade.util.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Handler;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Throughput of the MCA hot path (message log + accounting) for each mode of
+ * MessageLog. Log records are written to a temporary file, so that the 'all'
+ * mode pays real synchronous I/O as in an experiment.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageLogBenchmark {
+
+    private static final MethodHandle CREATE = DefaultPackage.method("MessageLog", "create",
+            String.class, Logger.class, String.class);
+    private static final MethodHandle PROCESSED = DefaultPackage.method("MessageLog", "processed", ACLMessage.class);
+    private static final MethodHandle CLOSE = DefaultPackage.method("MessageLog", "close");
+    private static final MethodHandle NEW_REGISTER = DefaultPackage.constructor("SenderRegister", int.class, int.class);
+    private static final MethodHandle SLOT_OF = DefaultPackage.method("SenderRegister", "slotOf", AID.class);
+    private static final MethodHandle ADD = DefaultPackage.method("SenderRegister", "add", int.class, int.class);
+
+    @Param({"all", "sample:100", "async", "off"})
+    public String mode;
+
+    @Param({"100", "10000"})
+    public int size;
+
+    private FileHandler fileHandler;
+    private Object messageLog;
+    private Object register;
+    private ACLMessage msg;
+
+    @Setup
+    public void setup() throws Throwable {
+        // Send log records to a file instead of the console
+        File logFile = File.createTempFile("spamit-log-benchmark", ".log");
+        logFile.deleteOnExit();
+        java.util.logging.Logger root = java.util.logging.Logger.getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            root.removeHandler(handler);
+        }
+        fileHandler = new FileHandler(logFile.getPath());
+        fileHandler.setFormatter(new SimpleFormatter());
+        root.addHandler(fileHandler);
+        Logger logger = Logger.getMyLogger(MessageLogBenchmark.class.getName());
+
+        // A byte payload, as sent by the SA's
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setSender(new AID("SpammerAgent", AID.ISLOCALNAME));
+        msg.setByteSequenceContent(content);
+        msg.setLanguage("spam");
+
+        messageLog = CREATE.invokeExact(mode, logger, "MessageConsumingAgent");
+        register = NEW_REGISTER.invokeExact(1, Integer.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        CLOSE.invokeExact(messageLog);
+        fileHandler.close();
+    }
+
+    @Benchmark
+    public void process() throws Throwable {
+        PROCESSED.invokeExact(messageLog, msg);
+        ADD.invokeExact(register, (int) SLOT_OF.invokeExact(register, msg.getSender()), 1);
+    }
+}
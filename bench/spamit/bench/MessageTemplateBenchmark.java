@@ -0,0 +1,99 @@
+package spamit.bench;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of matching the templates used by the agents against the messages
+ * they receive, and of building a template on every receive() as the MCA's
+ * did, compared with building it once, and with the direct match of
+ * SpamMessages.TEMPLATE.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark {
+
+    private static final MethodHandle DIRECT_SPAM_TEMPLATE = DefaultPackage.getter("SpamMessages", "TEMPLATE");
+
+    /** Message to match: a spam message, a credit grant or the START of the EMA */
+    @Param({"spam", "credit", "start"})
+    public String message;
+
+    private ACLMessage msg;
+    private MessageTemplate spamTemplate;
+    private MessageTemplate directSpamTemplate;
+    private MessageTemplate creditTemplate;
+    private MessageTemplate startTemplate;
+
+    @Setup
+    public void setup() throws Throwable {
+        msg = new ACLMessage(message.equals("start") ? ACLMessage.REQUEST : ACLMessage.INFORM);
+        msg.setSender(new AID(message.equals("start") ? "ExperimentMasterAgent" : "SpammerAgent1", AID.ISLOCALNAME));
+        msg.addReceiver(new AID("MessageConsumingAgent1", AID.ISLOCALNAME));
+        if (message.equals("spam")) {
+            msg.setLanguage("spam");
+            msg.setByteSequenceContent(new byte[100]);
+        } else if (message.equals("credit")) {
+            msg.setLanguage("spam-credit");
+            msg.setContent("50");
+        } else {
+            msg.setContent("start");
+        }
+        spamTemplate = spamTemplate();
+        directSpamTemplate = (MessageTemplate) DIRECT_SPAM_TEMPLATE.invoke();
+        creditTemplate = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.MatchLanguage("spam-credit"));
+        startTemplate = MessageTemplate.and(MessageTemplate.MatchSender(new AID("ExperimentMasterAgent", AID.ISLOCALNAME)),
+                MessageTemplate.MatchContent("start"));
+    }
+
+    /** Template of the spam messages, as the MCA's built it */
+    private static MessageTemplate spamTemplate() {
+        return MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.MatchLanguage("spam"));
+    }
+
+    @Benchmark
+    public boolean matchSpamTemplate() {
+        return spamTemplate.match(msg);
+    }
+
+    @Benchmark
+    public boolean matchDirectSpamTemplate() {
+        return directSpamTemplate.match(msg);
+    }
+
+    @Benchmark
+    public boolean matchCreditTemplate() {
+        return creditTemplate.match(msg);
+    }
+
+    @Benchmark
+    public boolean matchStartTemplate() {
+        return startTemplate.match(msg);
+    }
+
+    @Benchmark
+    public boolean buildAndMatchSpamTemplate() {
+        return spamTemplate().match(msg);
+    }
+}
@@ -0,0 +1,92 @@
+package spamit.bench;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue path of MessageConsumingAgentPriority: a message is queued in the
+ * PriorityScheduler and the next one chosen and taken out, with a constant
+ * backlog of 'depth' messages. Messages come from three SA's, one per
+ * priority class. The LinkedList the agent used before is the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PriorityQueueBenchmark {
+
+    private static final MethodHandle NEW_SCHEDULER = DefaultPackage.constructor("PriorityScheduler",
+            List.class, int[].class, String.class);
+    private static final MethodHandle ADD = DefaultPackage.method("PriorityScheduler", "add", ACLMessage.class, long.class);
+    private static final MethodHandle NEXT_CLASS = DefaultPackage.method("PriorityScheduler", "nextClass");
+    private static final MethodHandle POLL = DefaultPackage.method("PriorityScheduler", "poll", int.class);
+
+    @Param({"strict", "wfq"})
+    public String policy;
+
+    /** Messages kept queued */
+    @Param({"0", "1000"})
+    public int depth;
+
+    private ACLMessage[] messages;
+    private int next = 0;
+    private Object scheduler;
+    private Queue<ACLMessage> queue;
+
+    @Setup
+    public void setup() throws Throwable {
+        messages = new ACLMessage[3];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new ACLMessage(ACLMessage.INFORM);
+            messages[i].setSender(new AID("SpammerAgent" + i, AID.ISLOCALNAME));
+            messages[i].setLanguage("spam");
+        }
+        scheduler = NEW_SCHEDULER.invokeExact((List) Arrays.asList("SpammerAgent0", "SpammerAgent1"),
+                new int[]{4, 2, 1}, policy);
+        queue = new LinkedList<>();
+        for (int i = 0; i < depth; i++) {
+            ACLMessage msg = nextMessage();
+            int priorityClass = (int) ADD.invokeExact(scheduler, msg, System.nanoTime());
+            queue.add(msg);
+        }
+    }
+
+    private ACLMessage nextMessage() {
+        ACLMessage msg = messages[next];
+        next = next + 1 < messages.length ? next + 1 : 0;
+        return msg;
+    }
+
+    @Benchmark
+    public ACLMessage scheduler() throws Throwable {
+        // invokeExact needs the result to be assigned with its exact type
+        int priorityClass = (int) ADD.invokeExact(scheduler, nextMessage(), System.nanoTime());
+        return (ACLMessage) POLL.invokeExact(scheduler, (int) NEXT_CLASS.invokeExact(scheduler));
+    }
+
+    @Benchmark
+    public ACLMessage linkedList() {
+        queue.add(nextMessage());
+        return queue.poll();
+    }
+}
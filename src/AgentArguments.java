@@ -0,0 +1,64 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optional arguments of an agent, given as "key=value" after its positional
+ * arguments. E.g. SpammerAgent(50,1,rate=1000) has two positional arguments
+ * and the option 'rate'.
+ */
+final class AgentArguments {
+
+    private final Map<String, String> options = new HashMap<>();
+
+    /**
+     * Parse every argument from index 'first' on as a "key=value" option.
+     * @throws IllegalArgumentException if one of them is not an option
+     */
+    AgentArguments(Object[] args, int first) {
+        if (args == null) {
+            return;
+        }
+        for (int i = first; i < args.length; i++) {
+            String arg = ((String) args[i]).trim();
+            int split = arg.indexOf('=');
+            if (split <= 0) {
+                throw new IllegalArgumentException("Expected key=value argument but got: " + arg);
+            }
+            options.put(arg.substring(0, split).trim(), arg.substring(split + 1).trim());
+        }
+    }
+
+    boolean has(String key) {
+        return options.containsKey(key);
+    }
+
+    String get(String key, String defaultValue) {
+        String value = options.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    int getInt(String key, int defaultValue) {
+        String value = options.get(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    long getLong(String key, long defaultValue) {
+        String value = options.get(key);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    double getDouble(String key, double defaultValue) {
+        String value = options.get(key);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    boolean getBoolean(String key, boolean defaultValue) {
+        String value = options.get(key);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return options.toString();
+    }
+}
@@ -0,0 +1,353 @@
+import jade.core.Agent;
+import jade.core.behaviours.TickerBehaviour;
+import jade.util.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Live metrics of an agent, so that a stuck or saturated run can be watched
+ * while it goes on instead of only read from the final statistics. They are
+ * exposed as the MBean spamit:type=AGENT_CLASS,name="AGENT_NAME" while the
+ * agent runs. Modes (see expose()):
+ * - jmx: register the MBean (default).
+ * - off: only record.
+ * - http:PORT: register the MBean and serve all of them as JSON on the port
+ *   (see MetricsHttpServer).
+ * Messages and latencies are recorded by the agent thread, without
+ * synchronization, in the current interval of one second. At the end of each
+ * interval the rates and percentiles of the last 'windowSeconds' intervals are
+ * computed and published at once for the JMX threads, so readers see a
+ * consistent snapshot at most one second old; only the mailbox depth is read
+ * live. Intervals end in the ticker when the agent is idle, and while
+ * recording when it is busy, as a SA sending a burst never leaves its action.
+ * Agents override sample() to publish what other threads measure.
+ * The memory the agent uses is accounted too (see MemoryAccount), from the
+ * first message sent or received, the heap being sampled every interval.
+ */
+class AgentMetrics extends TickerBehaviour {
+
+    static final String DOMAIN = "spamit";
+    private static final long INTERVAL_MILLISECONDS = 1000;
+    private static final long INTERVAL_NANOSECONDS = INTERVAL_MILLISECONDS * 1000000;
+    /** The clock is only read when recording once every CHECK_MASK + 1 events */
+    private static final int CHECK_MASK = 255;
+    private static final long serialVersionUID = -1503947611427815073L;
+
+    private final int windowSeconds;
+    /** Interval -> System.nanoTime() when it started. Unused intervals started when the metrics were created */
+    private final long[] intervalStart;
+    /** Interval -> messages sent and received in it */
+    private final long[] sent;
+    private final long[] received;
+    /** Interval -> distribution of the latencies of the messages processed in it, in nanoseconds */
+    private final LatencyHistogram[] endToEndTimes;
+    private final LatencyHistogram[] processTimes;
+    /** Merge of the intervals of the window, reused on every publication */
+    private final LatencyHistogram windowEndToEndTimes = new LatencyHistogram();
+    private final LatencyHistogram windowProcessTimes = new LatencyHistogram();
+    private int current = 0;
+    private long nextRotation;
+    private int events = 0;
+    private long totalSent = 0;
+    private long totalReceived = 0;
+    private int queueDepth = -1;
+    private volatile Snapshot snapshot = new Snapshot();
+    private final MemoryAccount memory = new MemoryAccount();
+    /** Name of the MBean, or null if it is not registered */
+    private ObjectName name;
+    /** Port of the MetricsHttpServer in use, or -1 */
+    private int httpPort = -1;
+
+    AgentMetrics(Agent agent, int windowSeconds) {
+        super(agent, INTERVAL_MILLISECONDS);
+        if (windowSeconds < 1) {
+            throw new IllegalArgumentException("The metrics window must be at least 1 second");
+        }
+        this.windowSeconds = windowSeconds;
+        intervalStart = new long[windowSeconds];
+        sent = new long[windowSeconds];
+        received = new long[windowSeconds];
+        endToEndTimes = new LatencyHistogram[windowSeconds];
+        processTimes = new LatencyHistogram[windowSeconds];
+        long now = System.nanoTime();
+        for (int i = 0; i < windowSeconds; i++) {
+            intervalStart[i] = now;
+            endToEndTimes[i] = new LatencyHistogram();
+            processTimes[i] = new LatencyHistogram();
+        }
+        nextRotation = now + INTERVAL_NANOSECONDS;
+    }
+
+    /**
+     * Expose the metrics in the given mode. An MBean or HTTP server that
+     * cannot be started is logged, the agent goes on without it.
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    void expose(String mode, Logger logger) {
+        int port = -1;
+        if (mode.equals("off")) {
+            return;
+        } else if (mode.startsWith("http:")) {
+            port = Integer.parseInt(mode.substring("http:".length()));
+        } else if (!mode.equals("jmx")) {
+            throw new IllegalArgumentException("Unknown metrics mode: " + mode);
+        }
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + myAgent.getClass().getSimpleName()
+                    + ",name=" + ObjectName.quote(myAgent.getLocalName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new View(), AgentMetricsMBean.class), objectName);
+            name = objectName;
+        } catch (JMException e) {
+            logger.log(Logger.WARNING, "Agent " + myAgent.getLocalName() + " - Cannot register the metrics MBean", e);
+        }
+        if (port >= 0) {
+            try {
+                MetricsHttpServer.start(port);
+                httpPort = port;
+            } catch (IOException e) {
+                logger.log(Logger.WARNING, "Agent " + myAgent.getLocalName() + " - Cannot serve metrics on port " + port, e);
+            }
+        }
+    }
+
+    /** Stop and unregister the metrics. It must be called when the agent is taken down */
+    void close() {
+        stop();
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                // Already unregistered
+            }
+            name = null;
+        }
+        if (httpPort >= 0) {
+            MetricsHttpServer.stop(httpPort);
+            httpPort = -1;
+        }
+    }
+
+    MemoryAccount memory() {
+        return memory;
+    }
+
+    void sent(long count) {
+        if (!memory.isStarted()) {
+            memory.start();
+        }
+        sent[current] += count;
+        totalSent += count;
+        check();
+    }
+
+    void received(long count) {
+        if (!memory.isStarted()) {
+            memory.start();
+        }
+        received[current] += count;
+        totalReceived += count;
+        check();
+    }
+
+    void recordEndToEnd(long nanoseconds) {
+        endToEndTimes[current].record(nanoseconds);
+    }
+
+    void recordProcess(long nanoseconds) {
+        processTimes[current].record(nanoseconds);
+    }
+
+    /** Add messages sent by another thread to the current interval, from sample() */
+    void addSent(long count) {
+        sent[current] += count;
+        totalSent += count;
+    }
+
+    /** Add latencies recorded by another thread to the current interval, from sample() */
+    void addEndToEnd(LatencyHistogram histogram) {
+        endToEndTimes[current].add(histogram);
+    }
+
+    void addProcess(LatencyHistogram histogram) {
+        processTimes[current].add(histogram);
+    }
+
+    /** Set the depth of the queue of the agent, from sample() */
+    void setQueueDepth(int depth) {
+        queueDepth = depth;
+    }
+
+    /**
+     * Called in the agent thread at the end of each interval, before the
+     * window is published.
+     */
+    protected void sample() {
+    }
+
+    private void check() {
+        if ((++events & CHECK_MASK) == 0) {
+            long now = System.nanoTime();
+            if (now - nextRotation >= 0) {
+                rotate(now);
+            }
+        }
+    }
+
+    @Override
+    protected void onTick() {
+        long now = System.nanoTime();
+        // Unless the interval was just ended while recording
+        if (now - nextRotation >= -INTERVAL_NANOSECONDS / 2) {
+            rotate(now);
+        }
+    }
+
+    /** End the current interval, publish the window and start the next interval */
+    private void rotate(long now) {
+        sample();
+        memory.sample();
+        long windowSent = 0;
+        long windowReceived = 0;
+        windowEndToEndTimes.reset();
+        windowProcessTimes.reset();
+        for (int i = 0; i < windowSeconds; i++) {
+            windowSent += sent[i];
+            windowReceived += received[i];
+            windowEndToEndTimes.add(endToEndTimes[i]);
+            windowProcessTimes.add(processTimes[i]);
+        }
+        int oldest = (current + 1) % windowSeconds;
+        double seconds = Math.max(now - intervalStart[oldest], 1) / 1000000000.0;
+        snapshot = new Snapshot(totalSent, totalReceived, windowSent / seconds, windowReceived / seconds, queueDepth,
+                windowEndToEndTimes, windowProcessTimes);
+        current = oldest;
+        intervalStart[current] = now;
+        sent[current] = 0;
+        received[current] = 0;
+        endToEndTimes[current].reset();
+        processTimes[current].reset();
+        nextRotation = now + INTERVAL_NANOSECONDS;
+    }
+
+    /** Metrics of a window, immutable once published */
+    private static final class Snapshot {
+        final long messagesSent;
+        final long messagesReceived;
+        final double sentPerSecond;
+        final double receivedPerSecond;
+        final int queueDepth;
+        final double endToEndP50;
+        final double endToEndP90;
+        final double endToEndP99;
+        final double endToEndP999;
+        final double endToEndMax;
+        final double processP50;
+        final double processP99;
+        final double processMax;
+
+        Snapshot() {
+            this(0, 0, 0.0, 0.0, -1, new LatencyHistogram(), new LatencyHistogram());
+        }
+
+        Snapshot(long messagesSent, long messagesReceived, double sentPerSecond, double receivedPerSecond, int queueDepth,
+                 LatencyHistogram endToEndTimes, LatencyHistogram processTimes) {
+            this.messagesSent = messagesSent;
+            this.messagesReceived = messagesReceived;
+            this.sentPerSecond = sentPerSecond;
+            this.receivedPerSecond = receivedPerSecond;
+            this.queueDepth = queueDepth;
+            // Convert nanoseconds to milliseconds by dividing by a million
+            this.endToEndP50 = endToEndTimes.getValueAtPercentile(50.0) / 1000000.0;
+            this.endToEndP90 = endToEndTimes.getValueAtPercentile(90.0) / 1000000.0;
+            this.endToEndP99 = endToEndTimes.getValueAtPercentile(99.0) / 1000000.0;
+            this.endToEndP999 = endToEndTimes.getValueAtPercentile(99.9) / 1000000.0;
+            this.endToEndMax = endToEndTimes.getMax() / 1000000.0;
+            this.processP50 = processTimes.getValueAtPercentile(50.0) / 1000000.0;
+            this.processP99 = processTimes.getValueAtPercentile(99.0) / 1000000.0;
+            this.processMax = processTimes.getMax() / 1000000.0;
+        }
+    }
+
+    /** The MBean, read by the JMX threads: only the published snapshot and the mailbox */
+    private final class View implements AgentMetricsMBean {
+
+        @Override
+        public long getMessagesSent() {
+            return snapshot.messagesSent;
+        }
+
+        @Override
+        public long getMessagesReceived() {
+            return snapshot.messagesReceived;
+        }
+
+        @Override
+        public double getSentPerSecond() {
+            return snapshot.sentPerSecond;
+        }
+
+        @Override
+        public double getReceivedPerSecond() {
+            return snapshot.receivedPerSecond;
+        }
+
+        @Override
+        public int getMailboxDepth() {
+            return myAgent.getCurQueueSize();
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return snapshot.queueDepth;
+        }
+
+        @Override
+        public int getWindowSeconds() {
+            return windowSeconds;
+        }
+
+        @Override
+        public double getEndToEndP50Milliseconds() {
+            return snapshot.endToEndP50;
+        }
+
+        @Override
+        public double getEndToEndP90Milliseconds() {
+            return snapshot.endToEndP90;
+        }
+
+        @Override
+        public double getEndToEndP99Milliseconds() {
+            return snapshot.endToEndP99;
+        }
+
+        @Override
+        public double getEndToEndP999Milliseconds() {
+            return snapshot.endToEndP999;
+        }
+
+        @Override
+        public double getEndToEndMaxMilliseconds() {
+            return snapshot.endToEndMax;
+        }
+
+        @Override
+        public double getProcessP50Milliseconds() {
+            return snapshot.processP50;
+        }
+
+        @Override
+        public double getProcessP99Milliseconds() {
+            return snapshot.processP99;
+        }
+
+        @Override
+        public double getProcessMaxMilliseconds() {
+            return snapshot.processMax;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Live metrics of an agent, read through JMX (see AgentMetrics). Messages are
+ * spam messages: each payload of a batch counts as one. Rates and latencies
+ * cover the sliding window of the last getWindowSeconds() seconds.
+ */
+public interface AgentMetricsMBean {
+
+    /** Messages sent since the agent started */
+    long getMessagesSent();
+
+    /** Messages received since the agent started */
+    long getMessagesReceived();
+
+    double getSentPerSecond();
+
+    double getReceivedPerSecond();
+
+    /** Messages waiting in the mailbox of the agent, read when called */
+    int getMailboxDepth();
+
+    /**
+     * ACLMessages received but not processed yet, each holding a batch or a
+     * single message: in the priority queues of a MCAP, or waiting for a
+     * worker of a parallel MCA. -1 for other agents.
+     */
+    int getQueueDepth();
+
+    int getWindowSeconds();
+
+    double getEndToEndP50Milliseconds();
+
+    double getEndToEndP90Milliseconds();
+
+    double getEndToEndP99Milliseconds();
+
+    double getEndToEndP999Milliseconds();
+
+    double getEndToEndMaxMilliseconds();
+
+    double getProcessP50Milliseconds();
+
+    double getProcessP99Milliseconds();
+
+    double getProcessMaxMilliseconds();
+}
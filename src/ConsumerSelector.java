@@ -0,0 +1,192 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses the MCA each spam message goes to when a SA distributes its
+ * messages among the MCA's instead of sending each one to all of them (see
+ * the distribute option of SpammerAgent). Policies:
+ * - round-robin: the MCA's in turn.
+ * - hash: consistent hashing of the key of the message on a ring holding
+ *   VIRTUAL_NODES points of each MCA, so a key always goes to the same MCA and
+ *   adding or removing a MCA only moves its own keys. The key of message i is
+ *   i % keys, the MCA of each key is looked up on the ring once, when the
+ *   selector is created, so there can be at most MAX_KEYS.
+ * - least-loaded: the MCA with the fewest messages queued, estimated as the
+ *   queue depth it last reported (see LoadReporter) plus the messages sent to
+ *   it since the report arrived. Reports are INFORM messages in LANGUAGE
+ *   whose content is the depth, taken from the mailbox on each selection.
+ * A batch goes to one MCA, chosen by its first message.
+ * It must only be used from the thread sending the messages.
+ */
+abstract class ConsumerSelector {
+
+    static final String LANGUAGE = "spam-load";
+    static final int VIRTUAL_NODES = 64;
+    /** Maximum nº of keys for hash, whose MCA's are kept in a table of ints, i.e. 4 MB */
+    static final int MAX_KEYS = 1 << 20;
+
+    /** The MCA's, in the order of the indexes returned by select() */
+    final AID[] consumers;
+
+    ConsumerSelector(AID[] consumers) {
+        this.consumers = consumers;
+    }
+
+    /**
+     * @param keys nº of distinct keys for hash
+     * @throws IllegalArgumentException if the policy is unknown
+     */
+    static ConsumerSelector create(String policy, AID[] consumers, int keys, Agent agent) {
+        switch (policy) {
+            case "round-robin":
+                return new RoundRobin(consumers);
+            case "hash":
+                return new ConsistentHash(consumers, keys);
+            case "least-loaded":
+                return new LeastLoaded(consumers, agent);
+            default:
+                throw new IllegalArgumentException("Unknown distribution policy: " + policy);
+        }
+    }
+
+    /** Check the policy, before there are MCA's to create a selector */
+    static void check(String policy) {
+        create(policy, new AID[0], 1, null);
+    }
+
+    /** Index of the MCA the message with the sequence number goes to */
+    abstract int select(long sequence);
+
+    /** Account 'count' payloads sent to the MCA chosen by select() */
+    void sent(int consumer, int count) {
+    }
+
+    /** Payloads between two load reports requested from the MCA's, 0 for none */
+    int loadReportPeriod() {
+        return 0;
+    }
+
+    private static final class RoundRobin extends ConsumerSelector {
+
+        private int next = 0;
+
+        RoundRobin(AID[] consumers) {
+            super(consumers);
+        }
+
+        @Override
+        int select(long sequence) {
+            return next;
+        }
+
+        @Override
+        void sent(int consumer, int count) {
+            next = (consumer + 1) % consumers.length;
+        }
+    }
+
+    private static final class ConsistentHash extends ConsumerSelector {
+
+        /** Key -> index of its MCA on the ring, so that selecting is one lookup */
+        private final int[] table;
+
+        ConsistentHash(AID[] consumers, int keys) {
+            super(consumers);
+            if (keys < 1 || keys > MAX_KEYS) {
+                throw new IllegalArgumentException("There must be between 1 and " + MAX_KEYS + " keys");
+            }
+            // Point of the ring -> index of its MCA
+            TreeMap<Integer, Integer> ring = new TreeMap<>();
+            for (int i = 0; i < consumers.length; i++) {
+                for (int node = 0; node < VIRTUAL_NODES; node++) {
+                    ring.put(hash(consumers[i].getName() + "#" + node), i);
+                }
+            }
+            table = new int[ring.isEmpty() ? 0 : keys];
+            for (int key = 0; key < table.length; key++) {
+                Map.Entry<Integer, Integer> point = ring.ceilingEntry(hash(Integer.toString(key)));
+                table[key] = (point != null ? point : ring.firstEntry()).getValue();
+            }
+        }
+
+        @Override
+        int select(long sequence) {
+            return table[(int) (sequence % table.length)];
+        }
+
+        /** FNV-1a of the UTF-8 bytes, mixed so that close strings spread over the ring */
+        private static int hash(String value) {
+            int hash = 0x811c9dc5;
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                hash = (hash ^ (b & 0xff)) * 0x01000193;
+            }
+            hash ^= hash >>> 16;
+            hash *= 0x85ebca6b;
+            hash ^= hash >>> 13;
+            return hash;
+        }
+    }
+
+    private static final class LeastLoaded extends ConsumerSelector {
+
+        /** Payloads between two reports of each MCA */
+        private static final int REPORT_PERIOD = 32;
+
+        private final Agent agent;
+        private final MessageTemplate reportTemplate = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.MatchLanguage(LANGUAGE));
+        /** MCA name -> index */
+        private final Map<String, Integer> indexes = new HashMap<>();
+        /** Estimated nº of msg queued in each MCA */
+        private final long[] load;
+        private int last = -1;
+
+        LeastLoaded(AID[] consumers, Agent agent) {
+            super(consumers);
+            this.agent = agent;
+            for (int i = 0; i < consumers.length; i++) {
+                indexes.put(consumers[i].getName(), i);
+            }
+            load = new long[consumers.length];
+        }
+
+        @Override
+        int select(long sequence) {
+            ACLMessage report = agent.receive(reportTemplate);
+            while (report != null) {
+                Integer index = indexes.get(report.getSender().getName());
+                if (index != null) {
+                    load[index] = Long.parseLong(report.getContent());
+                }
+                report = agent.receive(reportTemplate);
+            }
+            // Ties go to the first MCA after the last one chosen, so equal loads are still spread
+            int best = -1;
+            for (int k = 1; k <= load.length; k++) {
+                int i = (last + k) % load.length;
+                if (best < 0 || load[i] < load[best]) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        void sent(int consumer, int count) {
+            load[consumer] += count;
+            last = consumer;
+        }
+
+        @Override
+        int loadReportPeriod() {
+            return REPORT_PERIOD;
+        }
+    }
+}
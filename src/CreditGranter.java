@@ -0,0 +1,86 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consumer side of the credit-based flow control between SA's and MCA's.
+ * Each SA starts with 'window' credits per MCA and spends one per message
+ * sent (one per payload of a batch), pausing when it runs out. The MCA gives
+ * credits back as it processes messages, granting them in chunks of half the
+ * window to keep the number of grant messages low. So at most 'window'
+ * messages of each SA are ever queued in a MCA, whose memory stays bounded.
+ * Grants are INFORM messages in LANGUAGE whose content is the number of credits.
+ */
+final class CreditGranter {
+
+    static final String LANGUAGE = "spam-credit";
+
+    private final Agent agent;
+    private final int threshold;
+    /** Slot of the SA (see SenderRegister) -> its account */
+    private Account[] accounts;
+
+    /**
+     * Credits consumed from one SA and not yet given back. Consumption can
+     * be recorded from any thread.
+     */
+    static final class Account {
+        private final AID sender;
+        private final AtomicInteger consumed = new AtomicInteger();
+
+        private Account(AID sender) {
+            this.sender = sender;
+        }
+    }
+
+    CreditGranter(Agent agent, int window, int expectedSenders) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Flow control window must be at least 1");
+        }
+        this.agent = agent;
+        this.threshold = Math.max(window / 2, 1);
+        this.accounts = new Account[Math.max(expectedSenders, 1)];
+    }
+
+    /**
+     * Account of the SA in the slot, created the first time. It must only be
+     * called from the agent thread.
+     */
+    Account accountOf(int slot, AID sender) {
+        if (slot >= accounts.length) {
+            accounts = Arrays.copyOf(accounts, Math.max(accounts.length * 2, slot + 1));
+        }
+        Account account = accounts[slot];
+        if (account == null) {
+            account = new Account(sender);
+            accounts[slot] = account;
+        }
+        return account;
+    }
+
+    /**
+     * Record that 'count' messages of the SA have been processed, granting
+     * the credits back once they reach the threshold. Thread safe.
+     */
+    void consumed(Account account, int count) {
+        if (account.consumed.addAndGet(count) < threshold) {
+            return;
+        }
+        int credits = account.consumed.getAndSet(0);
+        if (credits > 0) {
+            ACLMessage grant = new ACLMessage(ACLMessage.INFORM);
+            grant.addReceiver(account.sender);
+            grant.setLanguage(LANGUAGE);
+            grant.setContent(Integer.toString(credits));
+            agent.send(grant);
+        }
+    }
+
+    /** Shorthand for consumed(accountOf(slot, sender), count), from the agent thread */
+    void consumed(int slot, AID sender, int count) {
+        consumed(accountOf(slot, sender), count);
+    }
+}
@@ -0,0 +1,174 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.Behaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Agents registered in the DF with a service type, kept up to date by a DF
+ * subscription instead of searching the DF each time they are needed: the
+ * DF pushes a notification when one registers, modifies or deregisters.
+ * One search seeds the cache after subscribing, so agents registered before
+ * are known too. Notifications are taken from the mailbox every PERIOD
+ * milliseconds rather than on every message, as the mailbox of a busy agent
+ * is long and scanning it is not free, or on demand with update().
+ * Behaviours depending on the members, e.g. checking that all the SA's are
+ * done, are restarted when they change (see restartOnChange()).
+ * The properties the agents registered their service with are kept too, e.g.
+ * CONTAINER or AGGREGATOR.
+ * It must only be used from the agent thread.
+ */
+final class DirectoryCache extends TickerBehaviour {
+
+    /** Property of the services of the SA's: name of the container they run in */
+    static final String CONTAINER = "container";
+    /** Property of the services of the MCA's: name of the aggregator they report to, if any */
+    static final String AGGREGATOR = "aggregator";
+    private static final long PERIOD = 100;
+    private static final long serialVersionUID = 4108837269716434705L;
+
+    private final String serviceType;
+    /** Agent name -> its registration, in order of registration */
+    private final Map<String, DFAgentDescription> members = new LinkedHashMap<>();
+    private final List<Behaviour> dependents = new ArrayList<>();
+    private ACLMessage subscription;
+    private MessageTemplate notificationTemplate;
+
+    DirectoryCache(Agent agent, String serviceType) {
+        super(agent, PERIOD);
+        this.serviceType = serviceType;
+    }
+
+    /**
+     * Subscribe to the DF and seed the cache. The cache must be added to the
+     * agent as a behaviour to be kept up to date.
+     */
+    void subscribe() throws FIPAException {
+        DFAgentDescription template = template();
+        String conversationId = "directory-" + serviceType + "-" + myAgent.getName() + "-" + System.identityHashCode(this);
+        notificationTemplate = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.MatchConversationId(conversationId));
+        subscription = DFService.createSubscriptionMessage(myAgent, myAgent.getDefaultDF(), template, null);
+        subscription.setConversationId(conversationId);
+        myAgent.send(subscription);
+        // Notifications of changes after the search are in the mailbox already
+        for (DFAgentDescription description : DFService.search(myAgent, template)) {
+            members.put(description.getName().getName(), description);
+        }
+    }
+
+    /** Cancel the subscription. It must be called when the agent is taken down */
+    void close() {
+        stop();
+        if (subscription != null) {
+            myAgent.send(DFService.createCancelMessage(myAgent, myAgent.getDefaultDF(), subscription));
+            subscription = null;
+        }
+    }
+
+    /** Restart the behaviour whenever the members change */
+    void restartOnChange(Behaviour behaviour) {
+        dependents.add(behaviour);
+    }
+
+    @Override
+    protected void onTick() {
+        update();
+    }
+
+    /**
+     * Apply the notifications received so far.
+     * @return true if the members changed
+     */
+    boolean update() {
+        if (notificationTemplate == null) {
+            return false;
+        }
+        boolean changed = false;
+        ACLMessage notification = myAgent.receive(notificationTemplate);
+        while (notification != null) {
+            try {
+                for (DFAgentDescription description : DFService.decodeNotification(notification.getContent())) {
+                    AID name = description.getName();
+                    // A deregistration is notified with no services
+                    if (description.getAllServices().hasNext()) {
+                        changed |= members.put(name.getName(), description) == null;
+                    } else {
+                        changed |= members.remove(name.getName()) != null;
+                    }
+                }
+            } catch (FIPAException e) {
+                // Not a notification of the DF, the subscription may have failed
+            }
+            notification = myAgent.receive(notificationTemplate);
+        }
+        if (changed) {
+            for (Behaviour dependent : dependents) {
+                dependent.restart();
+            }
+        }
+        return changed;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    /** Names of the members. The collection changes with them */
+    Collection<String> names() {
+        return Collections.unmodifiableCollection(members.keySet());
+    }
+
+    AID[] members() {
+        AID[] result = new AID[members.size()];
+        int i = 0;
+        for (DFAgentDescription description : members.values()) {
+            result[i++] = description.getName();
+        }
+        return result;
+    }
+
+    /**
+     * Value of a property of the service of the member, or null if it is not
+     * a member or did not register the property.
+     */
+    String propertyOf(String name, String property) {
+        DFAgentDescription description = members.get(name);
+        if (description == null) {
+            return null;
+        }
+        Iterator<?> services = description.getAllServices();
+        while (services.hasNext()) {
+            Iterator<?> properties = ((ServiceDescription) services.next()).getAllProperties();
+            while (properties.hasNext()) {
+                Property candidate = (Property) properties.next();
+                if (property.equals(candidate.getName())) {
+                    return String.valueOf(candidate.getValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    private DFAgentDescription template() {
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(serviceType);
+        DFAgentDescription template = new DFAgentDescription();
+        template.addServices(sd);
+        return template;
+    }
+}
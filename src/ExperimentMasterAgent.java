@@ -1,29 +1,81 @@
 import jade.core.AID;
 import jade.core.Agent;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
 import jade.core.behaviours.Behaviour;
-import jade.core.behaviours.OneShotBehaviour;
-import jade.domain.DFService;
-import jade.domain.FIPAAgentManagement.DFAgentDescription;
-import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.core.behaviours.SimpleBehaviour;
 import jade.domain.FIPAException;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.util.Logger;
+import jade.wrapper.AgentContainer;
+import jade.wrapper.AgentController;
+import jade.wrapper.StaleProxyException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Experiment Master Agent (EMA). Initializes the experiment sending START
  * message to all SA's and measures the total time of processing all messages by
  * all MessageConsumingAgent's.
  * Run:
- * java jade.Boot -container ExperimentMasterAgent:ExperimentMasterAgent()
+ * java jade.Boot -container ExperimentMasterAgent:ExperimentMasterAgent([options])
+ * Options (key=value):
+ * - sweep: instead of measuring the agents already running, spawn and measure
+ *   the matrix of experiments configured in FILE (see ExperimentSweep).
+ * - metrics: how live metrics are exposed: jmx, off or http:PORT (see AgentMetrics).
+ *   Default jmx. The messages received are those consumed by all MCA's, as
+ *   reported in their PROGRESS and DONE records.
+ * - metricsWindow: seconds covered by the live rates. Default 10.
+ * - spammers, consumers: nº of SA's and MCA's to wait for in the DF before
+ *   starting, e.g. when they are launched in other containers at the same
+ *   time (see ScaleOutLauncher). By default the experiment starts at once with
+ *   the agents already registered.
+ * - timeout: seconds to wait for the DONE of all MCA's after START. When it
+ *   expires the results so far are reported as partial. Default 0, no timeout.
+ * - warmup: seconds of warmup before the measured window of each run, so
+ *   that class loading, JIT compilation and the DF lookups are not measured.
+ *   The SA's send warmup messages, which the MCA's process but do not
+ *   measure, until the EMA sends them WARMED. Once every MCA has processed
+ *   all of them (see WarmupTracker), the EMA sends MEASURE, starts the timer
+ *   and the SA's send their N messages. The throughput of the warmup, cold
+ *   start included, is reported apart from the one of the measured window.
+ *   Default 0, no warmup: the timer starts with START.
+ * MCA's can send their statistics to a StatisticsAggregatorAgent in their
+ * container, which sends one SUMMARY for all of them. They register in the
+ * DF which one (see DirectoryCache.AGGREGATOR). The experiment is over
+ * when every MCA registered at START is done or lost: it left the DF without
+ * its DONE, or its aggregator did before its SUMMARY.
+ * The messages consumed are reported per container of the MCA's, and as
+ * sent by SA's in the same container or in others (see
+ * StatisticsRecord.addPlacementCounters).
+ * They are checked, with those shed by overloaded MCA's (see
+ * MessageConsumingAgentPriority), against the total delivered by the SA's,
+ * which may distribute their messages among the MCA's (see
+ * ConsumerSelector) rather than send each one to all of them.
  * Note: The name of the agent must be 'ExperimentMasterAgent'.
  */
 public class ExperimentMasterAgent extends Agent {
 
     private final Logger logger = Logger.getMyLogger(getClass().getName());
     private static final long serialVersionUID = 570376489866952222L;
-    final static String DONE = "done";
     final static String START = "start";
+    /** User defined parameter of START: number of MCA's of the experiment */
+    final static String CONSUMERS = "spamit-consumers";
+    /** User defined parameter of START: WARMUP when the SA's must send warmup messages first */
+    final static String PHASE = "spamit-phase";
+    final static String WARMUP = "warmup";
+    /** Contents of the messages to the SA's ending the warmup, and then starting the measured window */
+    final static String WARMED = "warmed";
+    final static String MEASURE = "measure";
 
     private AID[] SpammerAgents;
 
@@ -31,105 +83,540 @@ public class ExperimentMasterAgent extends Agent {
 
     private double timeInitial;
 
+    private AgentMetrics metrics;
+
+    /** SA's, MCA's and aggregators registered in the DF */
+    private DirectoryCache spammerAgentDirectory;
+    private DirectoryCache messageConsumingAgentDirectory;
+    private DirectoryCache aggregatorDirectory;
+
+    /** Nanoseconds to wait for the DONE of all MCA's, or 0 */
+    private long timeout;
+
+    /** Nanoseconds of warmup before the measured window, or 0 */
+    private long warmup;
+
+    /** Time between checks for lost MCA's and the timeout while no record arrives */
+    private static final long CHECK_MILLISECONDS = 500;
+
+    /** Time to wait for spawned agents to register with or leave the DF */
+    private static final long AGENT_TIMEOUT_MILLISECONDS = 60000;
+
     @Override
     protected void setup() {
-        addBehaviour(new OneShotBehaviour(this) {
+        String sweepConfiguration;
+        final int expectedSpammers;
+        final int expectedConsumers;
+        try {
+            AgentArguments options = new AgentArguments(getArguments(), 0);
+            sweepConfiguration = options.get("sweep", null);
+            expectedSpammers = options.getInt("spammers", 0);
+            expectedConsumers = options.getInt("consumers", 0);
+            timeout = (long) (options.getDouble("timeout", 0.0) * 1000000000);
+            warmup = (long) (options.getDouble("warmup", 0.0) * 1000000000);
+            metrics = new AgentMetrics(this, options.getInt("metricsWindow", 10));
+            metrics.expose(options.get("metrics", "jmx"), logger);
+        } catch (IllegalArgumentException e) {
+            logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Incorrect arguments", e);
+            doDelete();
+            return;
+        }
+        addBehaviour(metrics);
+        spammerAgentDirectory = new DirectoryCache(this, "SpammerAgent");
+        messageConsumingAgentDirectory = new DirectoryCache(this, "MessageConsumingAgent");
+        aggregatorDirectory = new DirectoryCache(this, StatisticsAggregatorAgent.SERVICE_TYPE);
+        try {
+            spammerAgentDirectory.subscribe();
+            messageConsumingAgentDirectory.subscribe();
+            aggregatorDirectory.subscribe();
+        } catch (FIPAException e) {
+            logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Cannot subscribe to DF", e);
+            doDelete();
+            return;
+        }
+        addBehaviour(spammerAgentDirectory);
+        addBehaviour(messageConsumingAgentDirectory);
+        addBehaviour(aggregatorDirectory);
+        if (sweepConfiguration != null) {
+            try {
+                addBehaviour(new SweepBehaviour(ExperimentSweep.load(sweepConfiguration)));
+            } catch (IOException | IllegalArgumentException e) {
+                logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Cannot load sweep " + sweepConfiguration, e);
+                doDelete();
+            }
+            return;
+        }
+        SimpleBehaviour start = new SimpleBehaviour(this) {
             private static final long serialVersionUID = 1582761767744710850L;
+            private boolean started = false;
 
             @Override
             public void action() {
-                // Get list of Spammer Agents (SA)
-                ServiceDescription sd = new ServiceDescription();
-                sd.setType("SpammerAgent");
-                DFAgentDescription dfd = new DFAgentDescription();
-                dfd.addServices(sd);
-                try {
-                    DFAgentDescription[] result = DFService.search(myAgent, dfd);
-                    logger.log(Logger.INFO, "Found " + result.length + " SpammerAgents");
-                    SpammerAgents = new AID[result.length];
-                    for (int i = 0; i < result.length; ++i) {
-                        SpammerAgents[i] = result[i].getName();
+                // Get list of Spammer Agents (SA) and number of Message Consuming Agents (MCA)
+                spammerAgentDirectory.update();
+                messageConsumingAgentDirectory.update();
+                if (spammerAgentDirectory.size() < expectedSpammers || messageConsumingAgentDirectory.size() < expectedConsumers) {
+                    // Restarted when the DF notifies more agents
+                    block();
+                    return;
+                }
+                SpammerAgents = spammerAgentDirectory.members();
+                logger.log(Logger.INFO, "Found " + SpammerAgents.length + " SpammerAgents");
+                startExperiment(null);
+                started = true;
+            }
+
+            @Override
+            public boolean done() {
+                return started;
+            }
+        };
+        spammerAgentDirectory.restartOnChange(start);
+        messageConsumingAgentDirectory.restartOnChange(start);
+        addBehaviour(start);
+    }
+
+    @Override
+    protected void takeDown() {
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (spammerAgentDirectory != null) {
+            spammerAgentDirectory.close();
+            messageConsumingAgentDirectory.close();
+            aggregatorDirectory.close();
+        }
+    }
+
+    /**
+     * Send START message to all SA's, start the timer and listen to the DONE
+     * messages of the MCA's.
+     * @param onFinished behaviour to restart when all MCA's are done, or null
+     */
+    private ListenDoneMessagesBehaviour startExperiment(Behaviour onFinished) {
+        // The MCA's to wait for, with the aggregator they report through, and the aggregators
+        messageConsumingAgentDirectory.update();
+        aggregatorDirectory.update();
+        Map<String, String> consumers = new HashMap<>();
+        for (String name : messageConsumingAgentDirectory.names()) {
+            consumers.put(name, messageConsumingAgentDirectory.propertyOf(name, DirectoryCache.AGGREGATOR));
+        }
+        Set<String> aggregators = new HashSet<>(aggregatorDirectory.names());
+        numberOfMessageConsumingAgents = consumers.size();
+        ACLMessage startMsg = spammerAgentRequest(ExperimentMasterAgent.START);
+        // So that SA's wait for the DF to notify them of all MCA's
+        startMsg.addUserDefinedParameter(CONSUMERS, Integer.toString(numberOfMessageConsumingAgents));
+        if (warmup > 0) {
+            startMsg.addUserDefinedParameter(PHASE, WARMUP);
+        }
+        send(startMsg);
+        // Start timer, of the warmup if there is one
+        timeInitial = System.nanoTime();
+        // Add the behaviour listen to done messages
+        ListenDoneMessagesBehaviour listener = new ListenDoneMessagesBehaviour(onFinished, consumers, aggregators);
+        addBehaviour(listener);
+        return listener;
+    }
+
+    /** REQUEST to all SA's with the content */
+    private ACLMessage spammerAgentRequest(String content) {
+        ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+        for (AID SpammerAgent : SpammerAgents) {
+            request.addReceiver(SpammerAgent);
+        }
+        request.setContent(content);
+        return request;
+    }
+
+    /**
+     * Run every experiment of a sweep, one after the other: spawn its agents,
+     * START them, wait for the DONE of all MCA's, record the results and kill
+     * the agents. Results are written when all runs are over, or after a run
+     * that failed to start. It waits for the agents to register with or
+     * leave the DF blocked, restarted by the directories when they change.
+     */
+    private class SweepBehaviour extends SimpleBehaviour {
+
+        private static final long serialVersionUID = -6209131862411436870L;
+        /** Steps of a run, each one after the DF shows the agents of the previous */
+        private static final int SPAWN_SPAMMERS = 0;
+        private static final int SPAWN_CONSUMERS = 1;
+        private static final int START_RUN = 2;
+        private static final int LISTEN = 3;
+        private static final int KILLED = 4;
+        private final ExperimentSweep sweep;
+        /** Containers the agents are spread over, the one of the EMA first */
+        private final List<AgentContainer> containers = new ArrayList<>();
+        private final List<AgentController> agents = new ArrayList<>();
+        private int run = 0;
+        private int step = SPAWN_SPAMMERS;
+        /** Listener of the run in progress, or null between runs */
+        private ListenDoneMessagesBehaviour listener;
+        /** nº of SA's and MCA's to wait for in the DF, and until when, or -1 if not waiting */
+        private int awaitedSpammers = -1;
+        private int awaitedConsumers = -1;
+        private long awaitDeadline;
+
+        SweepBehaviour(ExperimentSweep sweep) {
+            this.sweep = sweep;
+        }
+
+        @Override
+        public void onStart() {
+            spammerAgentDirectory.restartOnChange(this);
+            messageConsumingAgentDirectory.restartOnChange(this);
+            containers.add(getContainerController());
+            for (int i = 1; i < sweep.containers; i++) {
+                ProfileImpl profile = new ProfileImpl(false);
+                profile.setParameter(Profile.MAIN_HOST, getProperty(Profile.MAIN_HOST, "localhost"));
+                profile.setParameter(Profile.MAIN_PORT, getProperty(Profile.MAIN_PORT, "1099"));
+                profile.setParameter(Profile.CONTAINER_NAME, getLocalName() + "-Sweep-" + i);
+                containers.add(jade.core.Runtime.instance().createAgentContainer(profile));
+            }
+            logger.log(Logger.INFO, "Sweep of " + sweep.runs.size() + " runs over " + containers.size() + " containers");
+        }
+
+        @Override
+        public void action() {
+            ExperimentSweep.Run current = sweep.runs.get(run);
+            try {
+                if (!registered()) {
+                    return;
+                }
+            } catch (IllegalStateException e) {
+                if (step != KILLED) {
+                    stop(current, e);
+                    return;
+                }
+                logger.log(Logger.WARNING, "Agents of the previous run still in the DF", e);
+            }
+            switch (step) {
+                case SPAWN_SPAMMERS:
+                case SPAWN_CONSUMERS:
+                    try {
+                        spawn(current);
+                    } catch (StaleProxyException e) {
+                        stop(current, e);
+                    }
+                    break;
+                case START_RUN:
+                    listener = startExperiment(this);
+                    step = LISTEN;
+                    block();
+                    break;
+                case LISTEN:
+                    if (!listener.finished) {
+                        block();
+                        return;
                     }
-                } catch (FIPAException e) {
-                    logger.log(Logger.SEVERE, "Cannot get SA's", e);
+                    StatisticsAggregator statistics = listener.statistics;
+                    sweep.record(new ExperimentSweep.Result(current, listener.elapsedMilliseconds, listener.warmupMilliseconds,
+                            statistics, java.lang.Runtime.getRuntime().totalMemory() - java.lang.Runtime.getRuntime().freeMemory()));
+                    killAgents();
+                    listener = null;
+                    step = KILLED;
+                    break;
+                case KILLED:
+                    while (receive(MessageTemplate.MatchLanguage(StatisticsRecord.LANGUAGE)) != null) {
+                        // Late reports of the SA's
+                    }
+                    step = SPAWN_SPAMMERS;
+                    run++;
+                    break;
+            }
+        }
 
+        /**
+         * Spawn the SA's, then, once they are in the DF, the MCA's, which
+         * count the SA's in the DF when they start.
+         */
+        private void spawn(ExperimentSweep.Run current) throws StaleProxyException {
+            if (step == SPAWN_SPAMMERS) {
+                logger.log(Logger.INFO, "Starting " + current);
+                SpammerAgents = new AID[current.spammers];
+                for (int i = 0; i < current.spammers; i++) {
+                    String name = "SpammerAgent-" + run + "-" + i;
+                    List<String> args = new ArrayList<>();
+                    args.add(Integer.toString(current.messages));
+                    args.add(Integer.toString(current.size));
+                    args.add("batch=" + current.batch);
+                    addOptions(args, sweep.spammerOptions);
+                    spawn(name, "SpammerAgent", args);
+                    SpammerAgents[i] = new AID(name, AID.ISLOCALNAME);
                 }
-                // Get number of Message Consuming Agents (MCA)
-                sd = new ServiceDescription();
-                sd.setType("MessageConsumingAgent");
-                dfd = new DFAgentDescription();
-                dfd.addServices(sd);
+                await(current.spammers, 0);
+                step = SPAWN_CONSUMERS;
+                return;
+            }
+            for (int i = 0; i < current.consumers; i++) {
+                List<String> args = new ArrayList<>();
+                args.add(Integer.toString(current.messages));
+                addOptions(args, sweep.consumerOptions);
+                spawn("MessageConsumingAgent-" + run + "-" + i, current.consumer, args);
+            }
+            await(current.spammers, current.consumers);
+            step = START_RUN;
+        }
+
+        private void spawn(String name, String className, List<String> args) throws StaleProxyException {
+            AgentContainer container = containers.get(agents.size() % containers.size());
+            AgentController agent = container.createNewAgent(name, className, args.toArray());
+            agents.add(agent);
+            agent.start();
+        }
+
+        private void addOptions(List<String> args, String options) {
+            for (String option : options.split("\\s+")) {
+                if (!option.isEmpty()) {
+                    args.add(option);
+                }
+            }
+        }
+
+        /** Wait for the DF to notify that many SA's and MCA's before the next step */
+        private void await(int spammers, int consumers) {
+            awaitedSpammers = spammers;
+            awaitedConsumers = consumers;
+            awaitDeadline = System.currentTimeMillis() + AGENT_TIMEOUT_MILLISECONDS;
+        }
+
+        /**
+         * Whether the agents waited for are in the DF, blocking until it
+         * changes or the deadline if not.
+         * @throws IllegalStateException if they are not there in time
+         */
+        private boolean registered() {
+            if (awaitedSpammers < 0) {
+                return true;
+            }
+            spammerAgentDirectory.update();
+            messageConsumingAgentDirectory.update();
+            if (spammerAgentDirectory.size() == awaitedSpammers && messageConsumingAgentDirectory.size() == awaitedConsumers) {
+                awaitedSpammers = -1;
+                return true;
+            }
+            long left = awaitDeadline - System.currentTimeMillis();
+            if (left <= 0) {
+                String message = spammerAgentDirectory.size() + " SA's and " + messageConsumingAgentDirectory.size()
+                        + " MCA's in the DF, expected " + awaitedSpammers + " and " + awaitedConsumers;
+                awaitedSpammers = -1;
+                throw new IllegalStateException(message);
+            }
+            block(left);
+            return false;
+        }
+
+        /** Stop the sweep after the run failed to start */
+        private void stop(ExperimentSweep.Run current, Exception e) {
+            logger.log(Logger.SEVERE, "Cannot start " + current + ", stopping the sweep", e);
+            killAgents();
+            awaitedSpammers = -1;
+            run = sweep.runs.size();
+        }
+
+        /**
+         * Kill the agents of the run and wait for them to leave the DF, then
+         * drop the messages they sent after the DONE of all MCA's.
+         */
+        private void killAgents() {
+            for (AgentController agent : agents) {
                 try {
-                    DFAgentDescription[] result = DFService.search(myAgent, dfd);
-                    numberOfMessageConsumingAgents = result.length;
-                } catch (FIPAException e) {
-                    logger.log(Logger.SEVERE, "Cannot get MessageConsumingAgents", e);
+                    agent.kill();
+                } catch (StaleProxyException e) {
+                    // Already dead
                 }
-                // Send START message to all SA's
-                ACLMessage startMsg = new ACLMessage(ACLMessage.REQUEST);
-                for (AID SpammerAgent : SpammerAgents) {
-                    startMsg.addReceiver(SpammerAgent);
+            }
+            agents.clear();
+            await(0, 0);
+        }
+
+        @Override
+        public boolean done() {
+            return run == sweep.runs.size();
+        }
+
+        @Override
+        public int onEnd() {
+            try {
+                sweep.write();
+                System.out.println("Sweep results written to " + sweep.output() + ".csv, " + sweep.output() + ".json and "
+                        + sweep.output() + "-summary.csv");
+                for (String line : sweep.summary()) {
+                    System.out.println(line);
+                }
+            } catch (IOException e) {
+                logger.log(Logger.SEVERE, "Cannot write the sweep results", e);
+            }
+            for (AgentContainer container : containers.subList(1, containers.size())) {
+                try {
+                    container.kill();
+                } catch (StaleProxyException e) {
+                    // Already dead
                 }
-                startMsg.setContent(ExperimentMasterAgent.START);
-                myAgent.send(startMsg);
-                // Start timer
-                timeInitial = System.nanoTime();
-                // Add the behaviour listen to done messages
-                addBehaviour(new ListenDoneMessagesBehaviour());
-            }
-        });
+            }
+            return 0;
+        }
     }
 
     /**
-     * Listen to done messages and stop timer when all messages have been
-     * received.
+     * Listen to the statistics of the agents and stop timer when all MCA's
+     * are DONE or lost, or the timeout expires. With a warmup, end it in
+     * time and restart the timer when all MCA's are warm or lost. Records are merged as they
+     * arrive and the progress reported by the MCA's is logged. MCA's and
+     * aggregators are checked for departures from the DF when no record
+     * arrives for a while, so that a DONE still in the mailbox is not missed.
      */
 
     private class ListenDoneMessagesBehaviour extends Behaviour {
 
         private static final long serialVersionUID = 4075092804919487501L;
-        /** Number of MCA's that have finished */
-        private int done;
-        private int numOfMessagesConsumedByAllMCAs = 0;
-        private double shortestSpamMsgProcessTime = Double.MAX_VALUE;
-        private double longestSpamMsgProcessTime = Double.MIN_VALUE;
-        ListenDoneMessagesBehaviour() {
+        private final MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.MatchLanguage(StatisticsRecord.LANGUAGE));
+        private final StatisticsAggregator statistics = new StatisticsAggregator();
+        /** Behaviour to restart when all MCA's are done, or null */
+        private final Behaviour onFinished;
+        /** MCA name -> its aggregator or null, for those registered at START not done or lost yet */
+        private final Map<String, String> pendingConsumers;
+        /** Aggregators registered at START without SUMMARY yet */
+        private final Set<String> pendingAggregators;
+        /** MCA's lost as seen by the EMA, those lost within an aggregator are in the statistics */
+        private int numOfMessageConsumingAgentsLost = 0;
+        private boolean timedOut = false;
+        private boolean finished = false;
+        private double elapsedMilliseconds;
+        /** Whether the measured window has not started yet, and whether WARMED was sent */
+        private boolean warmingUp = warmup > 0;
+        private boolean warmedSent = false;
+        /** Time from START to MEASURE, 0 without warmup */
+        private double warmupMilliseconds = 0;
+        ListenDoneMessagesBehaviour(Behaviour onFinished, Map<String, String> consumers, Set<String> aggregators) {
             super();
-            done = 0;
+            this.onFinished = onFinished;
+            this.pendingConsumers = consumers;
+            this.pendingAggregators = aggregators;
         }
 
         @Override
         public void action() {
-            // Receive DONE messages
-            MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.INFORM);
+            // Receive DONE, PROGRESS and REPORT records
             ACLMessage msg = myAgent.receive(mt);
-            int numOfMessagesProcessedByOneMCA = 0;
-            double shortestMessageProcessTimeForOneMCA = 0.0;
-            double longestMessageProcessTimeForOneMCA = 0.0;
-            if (msg != null && msg.getContent().contains(ExperimentMasterAgent.DONE)) {
-                ++done;
-                // Get scenario statistics
-                String[] statistics = msg.getContent().split("_");
-                numOfMessagesProcessedByOneMCA = Integer.parseInt(statistics[1]);
-                shortestMessageProcessTimeForOneMCA = Double.parseDouble(statistics[2]);
-                longestMessageProcessTimeForOneMCA = Double.parseDouble(statistics[3]);
-                // Now we find the shortest/longest time comparing to other MCAs
-                if(shortestMessageProcessTimeForOneMCA < shortestSpamMsgProcessTime){
-                    shortestSpamMsgProcessTime = shortestMessageProcessTimeForOneMCA;
+            if (msg == null) {
+                checkLost();
+                timedOut = timeout > 0 && System.nanoTime() - timeInitial > timeout;
+                long wait = CHECK_MILLISECONDS;
+                if (warmingUp) {
+                    checkWarmup();
+                    if (!warmedSent) {
+                        wait = Math.max(Math.min(wait, (long) ((warmup - (System.nanoTime() - timeInitial)) / 1000000)), 1);
+                    }
                 }
-                if(longestMessageProcessTimeForOneMCA > longestSpamMsgProcessTime){
-                    longestSpamMsgProcessTime = longestMessageProcessTimeForOneMCA;
+                block(wait);
+                return;
+            }
+            StatisticsRecord record;
+            try {
+                record = StatisticsRecord.fromBytes(msg.getByteSequenceContent());
+            } catch (IOException e) {
+                logger.log(Logger.WARNING, "Invalid statistics from " + msg.getSender().getName(), e);
+                return;
+            }
+            long consumed = statistics.progress();
+            statistics.add(msg.getSender().getName(), record);
+            metrics.received(statistics.progress() - consumed);
+            if (record.kind == StatisticsRecord.Kind.DONE) {
+                pendingConsumers.remove(msg.getSender().getName());
+            } else if (record.kind == StatisticsRecord.Kind.SUMMARY) {
+                // Its MCA's are done or lost, as counted in the SUMMARY
+                String aggregator = msg.getSender().getName();
+                if (pendingAggregators.remove(aggregator)) {
+                    int covered = pendingConsumers.size();
+                    pendingConsumers.values().removeAll(Collections.singleton(aggregator));
+                    covered -= pendingConsumers.size();
+                    // Those it did not see are lost too
+                    long counted = StatisticsAggregator.counter(record, StatisticsRecord.CONSUMERS_DONE)
+                            + StatisticsAggregator.counter(record, StatisticsRecord.CONSUMERS_LOST);
+                    if (covered > counted) {
+                        logger.log(Logger.WARNING, "Aggregator " + aggregator + " summarized " + counted + " of "
+                                + covered + " MCAs");
+                        numOfMessageConsumingAgentsLost += covered - counted;
+                    }
                 }
-                numOfMessagesConsumedByAllMCAs += numOfMessagesProcessedByOneMCA;
-            } else {
-                block();
+            }
+            if (record.kind == StatisticsRecord.Kind.WARMUP && warmingUp) {
+                checkWarmup();
+            }
+            if (record.kind == StatisticsRecord.Kind.PROGRESS) {
+                double elapsed = (System.nanoTime() - timeInitial) / 1000000;
+                logger.log(Logger.INFO, "Progress: " + statistics.progress() + " msg consumed by all MCAs in " + elapsed + "ms ("
+                        + statistics.progress() * 1000 / elapsed + " msg/s), " + statistics.numOfMessageConsumingAgentsDone
+                        + " of " + numberOfMessageConsumingAgents + " MCAs done");
             }
         }
 
+        /**
+         * Send WARMED once the warmup has lasted long enough, then MEASURE
+         * once every MCA is warm or lost, restarting the timer.
+         */
+        private void checkWarmup() {
+            double elapsed = System.nanoTime() - timeInitial;
+            if (!warmedSent) {
+                if (elapsed >= warmup) {
+                    send(spammerAgentRequest(WARMED));
+                    warmedSent = true;
+                }
+                return;
+            }
+            if (statistics.numOfMessageConsumingAgentsWarm + numOfMessageConsumingAgentsLost() < numberOfMessageConsumingAgents) {
+                return;
+            }
+            warmupMilliseconds = elapsed / 1000000;
+            logger.log(Logger.INFO, "Warmup over: " + statistics.numOfWarmupMessagesConsumed + " msg consumed by all MCAs in "
+                    + warmupMilliseconds + "ms, starting the measured window");
+            warmingUp = false;
+            timeInitial = System.nanoTime();
+            send(spammerAgentRequest(MEASURE));
+        }
+
+        /**
+         * MCA's that left the DF are lost, unless they report through an
+         * aggregator: it counts them in its SUMMARY. If it left the DF too, all
+         * of the MCA's reporting through it that are not done yet are lost.
+         */
+        private void checkLost() {
+            Iterator<String> aggregators = pendingAggregators.iterator();
+            while (aggregators.hasNext()) {
+                String aggregator = aggregators.next();
+                if (!aggregatorDirectory.names().contains(aggregator)) {
+                    logger.log(Logger.WARNING, "Aggregator " + aggregator + " left without its SUMMARY");
+                    aggregators.remove();
+                    Iterator<String> covered = pendingConsumers.values().iterator();
+                    while (covered.hasNext()) {
+                        if (aggregator.equals(covered.next())) {
+                            numOfMessageConsumingAgentsLost++;
+                            covered.remove();
+                        }
+                    }
+                }
+            }
+            Iterator<Map.Entry<String, String>> consumers = pendingConsumers.entrySet().iterator();
+            while (consumers.hasNext()) {
+                Map.Entry<String, String> consumer = consumers.next();
+                if (!pendingAggregators.contains(consumer.getValue()) && !messageConsumingAgentDirectory.names().contains(consumer.getKey())) {
+                    logger.log(Logger.WARNING, "MCA " + consumer.getKey() + " left without its DONE");
+                    numOfMessageConsumingAgentsLost++;
+                    consumers.remove();
+                }
+            }
+        }
+
+        private int numOfMessageConsumingAgentsLost() {
+            return numOfMessageConsumingAgentsLost + statistics.numOfMessageConsumingAgentsLost;
+        }
+
         @Override
         public boolean done() {
-            // When all MCA have sent DONE message, we are done
-            return done == numberOfMessageConsumingAgents;
+            // When all MCA have sent DONE message or are lost, we are done
+            return timedOut || statistics.numOfMessageConsumingAgentsDone + numOfMessageConsumingAgentsLost() >= numberOfMessageConsumingAgents;
         }
 
         @Override
@@ -137,12 +624,116 @@ public class ExperimentMasterAgent extends Agent {
             // Print execution time
             double timeFinished = System.nanoTime() - timeInitial;
             double timeFinishedMilliseconds = timeFinished / 1000000;
+            elapsedMilliseconds = timeFinishedMilliseconds;
             System.out.println("Execution time: " + timeFinishedMilliseconds + "ms");
-            System.out.println("Num of Messages: " + numOfMessagesConsumedByAllMCAs + " Average time to process 1 spam msg: " + timeFinishedMilliseconds / numOfMessagesConsumedByAllMCAs + "ms");
-            System.out.println("Shortest time to process 1 spam msg: " + shortestSpamMsgProcessTime + "ms");
-            System.out.println("Longest time to process 1 spam msg: " + longestSpamMsgProcessTime + "ms");
+            if (warmup > 0) {
+                double seconds = timeFinishedMilliseconds / 1000;
+                double warmupSeconds = warmupMilliseconds / 1000;
+                System.out.println("Warmup (cold start): " + statistics.numOfWarmupMessagesConsumed + " msg consumed in " + warmupMilliseconds
+                        + "ms (" + (warmupSeconds > 0 ? statistics.numOfWarmupMessagesConsumed / warmupSeconds : 0.0) + " msg/s)"
+                        + (warmingUp ? ", not over" : "") + ". Measured window (steady state): " + statistics.numOfMessagesConsumed
+                        + " msg consumed in " + timeFinishedMilliseconds + "ms (" + statistics.numOfMessagesConsumed / seconds + " msg/s)");
+            }
+            int missing = numberOfMessageConsumingAgents - statistics.numOfMessageConsumingAgentsDone - numOfMessageConsumingAgentsLost();
+            if (statistics.numOfMessageConsumingAgentsDone < numberOfMessageConsumingAgents) {
+                System.out.println("Partial results: " + statistics.numOfMessageConsumingAgentsDone + " of " + numberOfMessageConsumingAgents
+                        + " MCAs done, " + numOfMessageConsumingAgentsLost() + " lost, " + Math.max(missing, 0) + " missing"
+                        + (timedOut ? " after the timeout" : ""));
+            }
+            System.out.println("Num of Messages: " + statistics.numOfMessagesConsumed + " Average time to process 1 spam msg: " + timeFinishedMilliseconds / statistics.numOfMessagesConsumed + "ms");
+            System.out.println("Shortest time to process 1 spam msg: " + statistics.processTimes.getMin() / 1000000.0 + "ms");
+            System.out.println("Longest time to process 1 spam msg: " + statistics.processTimes.getMax() / 1000000.0 + "ms");
+            printPercentiles("Time to process 1 spam msg", statistics.processTimes);
+            printPercentiles("Time from send to consumption of 1 spam msg", statistics.endToEndTimes);
+            System.out.println("Num of Messages received out of order: " + statistics.numOfMessagesReordered);
+            System.out.println("SAs reported: " + statistics.numOfSpammerAgentsReported + " Num of Messages sent: " + statistics.numOfMessagesSent
+                    + " Time blocked by flow control, total: " + statistics.spammerBlockedTime / 1000000.0 + "ms longest: "
+                    + statistics.longestSpammerBlockedTime / 1000000.0 + "ms");
+            System.out.println("Num of Messages consumed from each SA: " + statistics.senders);
+            printDelivery();
+            printPlacement(timeFinishedMilliseconds / 1000);
+            printMemory();
+            for (Map.Entry<String, LatencyHistogram> entry : statistics.classEndToEndTimes.entrySet()) {
+                System.out.println("Priority class " + entry.getKey() + " - Num of Messages: " + statistics.classMessagesProcessed.get(entry.getKey())
+                        + " shed: " + statistics.counter(StatisticsRecord.SHED_CLASS + entry.getKey()));
+                printPercentiles("Priority class " + entry.getKey() + " - Time from send to consumption of 1 spam msg", entry.getValue());
+            }
+            System.out.println("Counters: " + statistics.counters);
+            finished = true;
+            if (onFinished != null) {
+                onFinished.restart();
+            }
             return 0;
         }
+
+        /**
+         * Messages delivered by the SA's against those consumed or shed, as
+         * totals rather than per SA, since SA's distributing their messages
+         * send a different nº to each MCA, and how evenly they were distributed.
+         */
+        private void printDelivery() {
+            long delivered = statistics.counter(StatisticsRecord.DELIVERED);
+            long shed = statistics.counter(StatisticsRecord.SHED);
+            long missing = delivered - statistics.numOfMessagesConsumed - shed;
+            System.out.println("Num of Messages delivered to MCAs: " + delivered + " consumed: " + statistics.numOfMessagesConsumed
+                    + " shed: " + shed + (missing > 0 ? " (" + missing + " not consumed)" : ""));
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            long total = 0;
+            int consumers = 0;
+            String suffix = "." + StatisticsRecord.SENT;
+            for (Map.Entry<String, Long> entry : statistics.counters.entrySet()) {
+                if (entry.getKey().startsWith(StatisticsRecord.CONSUMER) && entry.getKey().endsWith(suffix)) {
+                    min = Math.min(min, entry.getValue());
+                    max = Math.max(max, entry.getValue());
+                    total += entry.getValue();
+                    consumers++;
+                }
+            }
+            if (consumers > 0) {
+                double mean = (double) total / consumers;
+                System.out.println("Num of Messages distributed to each of " + consumers + " MCAs: min " + min + " max " + max
+                        + " mean " + mean + " (max/mean " + (mean > 0 ? max / mean : 0.0) + ")");
+            }
+        }
+
+        /** Throughput per container of the MCA's, and within and across containers */
+        private void printPlacement(double seconds) {
+            for (Map.Entry<String, Long> entry : statistics.counters.entrySet()) {
+                String name = entry.getKey();
+                if (name.startsWith(StatisticsRecord.CONTAINER) && name.endsWith(StatisticsRecord.CONSUMED)) {
+                    System.out.println("Container " + name.substring(StatisticsRecord.CONTAINER.length(), name.length() - StatisticsRecord.CONSUMED.length())
+                            + " - Num of Messages consumed: " + entry.getValue() + " (" + entry.getValue() / seconds + " msg/s)");
+                }
+            }
+            long intraContainer = statistics.counter(StatisticsRecord.INTRA_CONTAINER);
+            long interContainer = statistics.counter(StatisticsRecord.INTER_CONTAINER);
+            System.out.println("Num of Messages consumed in the container of their SA: " + intraContainer + " (" + intraContainer / seconds
+                    + " msg/s), from other containers: " + interContainer + " (" + interContainer / seconds + " msg/s)");
+        }
+
+        /** Memory of the agents over their measured windows, as reported in their counters (see MemoryAccount) */
+        private void printMemory() {
+            System.out.println("Bytes allocated per msg consumed: by the MCAs " + statistics.allocatedBytesPerMessage(statistics.consumerAllocatedBytes)
+                    + " (" + statistics.consumerAllocatedBytes + " total), by the SAs " + statistics.allocatedBytesPerMessage(statistics.spammerAllocatedBytes)
+                    + " (" + statistics.spammerAllocatedBytes + " total)");
+            System.out.println("Heap used: peak " + statistics.counter(MemoryAccount.HEAP_PEAK) / 1048576.0 + "MB, at the end "
+                    + statistics.counter(MemoryAccount.HEAP_USED) / 1048576.0 + "MB. GCs: " + statistics.counter(MemoryAccount.GC_COUNT)
+                    + " taking " + statistics.counter(MemoryAccount.GC_TIME) + "ms");
+            long payloadBytes = statistics.counter(SharedPayloads.BYTES);
+            long sharedBytes = statistics.counter(SharedPayloads.SHARED_BYTES);
+            System.out.println("Payload bytes received: " + payloadBytes + ", in the buffer of their SA, without a copy: " + sharedBytes
+                    + " (" + (payloadBytes > 0 ? sharedBytes * 100.0 / payloadBytes : 0.0) + "%)");
+        }
+
+        private void printPercentiles(String title, LatencyHistogram histogram) {
+            System.out.println(title + " (" + histogram.getTotalCount() + " samples):"
+                    + " p50: " + histogram.getValueAtPercentile(50.0) / 1000000.0 + "ms"
+                    + " p90: " + histogram.getValueAtPercentile(90.0) / 1000000.0 + "ms"
+                    + " p99: " + histogram.getValueAtPercentile(99.0) / 1000000.0 + "ms"
+                    + " p99.9: " + histogram.getValueAtPercentile(99.9) / 1000000.0 + "ms"
+                    + " p99.99: " + histogram.getValueAtPercentile(99.99) / 1000000.0 + "ms");
+        }
     }
 
 
@@ -0,0 +1,344 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Matrix of experiments run one after the other by the ExperimentMasterAgent,
+ * and their results. Every combination of the parameters is a point of the
+ * sweep, run 'warmup' times with the results discarded and then 'repeats'
+ * times measured. Each run can also have a warmup phase of its own before
+ * its measured window (see the warmup option of ExperimentMasterAgent).
+ * Configuration, a properties file:
+ * - spammers, consumers: number of SA's and MCA's.
+ * - messages, size, batch: arguments N, M and 'batch' of the SA's.
+ * - consumer: class of the MCA's, e.g. MessageConsumingAgentParallel.
+ *   Each of the above is a list of values separated by ','.
+ * - warmup: runs of each point discarded before measuring. Default 1.
+ * - repeats: measured runs of each point. Default 3.
+ * - spammerOptions, consumerOptions: extra options of the SA's and MCA's,
+ *   separated by spaces. Default consumerOptions=log=off.
+ * - containers: number of local containers the agents are spread over,
+ *   round-robin. Default 1, the container of the EMA.
+ * - output: results are written to OUTPUT.csv and OUTPUT.json. Default sweep.
+ *   The run-to-run variance of each point over its measured runs is written
+ *   to OUTPUT-summary.csv.
+ */
+final class ExperimentSweep {
+
+    final List<Run> runs;
+    final int containers;
+    final String spammerOptions;
+    final String consumerOptions;
+    private final String output;
+    private final List<Result> results = new ArrayList<>();
+
+    /** One run of a point of the sweep */
+    static final class Run {
+        final int point;
+        /** Index of the run among those of its point, warmup included */
+        final int repeat;
+        final boolean warmup;
+        final int spammers;
+        final int consumers;
+        final int messages;
+        final int size;
+        final int batch;
+        final String consumer;
+
+        private Run(int point, int repeat, boolean warmup, int spammers, int consumers, int messages, int size,
+                    int batch, String consumer) {
+            this.point = point;
+            this.repeat = repeat;
+            this.warmup = warmup;
+            this.spammers = spammers;
+            this.consumers = consumers;
+            this.messages = messages;
+            this.size = size;
+            this.batch = batch;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public String toString() {
+            return "point " + point + (warmup ? " warmup " : " repeat ") + repeat + ": " + spammers + " SA x " + consumers
+                    + " " + consumer + ", " + messages + " msg of " + size + " bytes, batch " + batch;
+        }
+    }
+
+    /** Measures of one run */
+    static final class Result {
+        final Run run;
+        final double elapsedMilliseconds;
+        /** Warmup phase of the run, 0 without one, and the warmup msg consumed */
+        final double warmupMilliseconds;
+        final long numOfWarmupMessagesConsumed;
+        final long numOfMessagesConsumed;
+        final long numOfMessagesSent;
+        final long numOfMessagesReordered;
+        final LatencyHistogram processTimes;
+        final LatencyHistogram endToEndTimes;
+        /** Heap used by the JVM of the EMA at the end of the run */
+        final long heapUsedBytes;
+        /** Bytes allocated per msg consumed by the MCA's and by the SA's (see MemoryAccount) */
+        final double consumerAllocatedBytesPerMessage;
+        final double spammerAllocatedBytesPerMessage;
+        /** Peak heap used and collections of the JVM's of the agents during the run */
+        final long heapPeakBytes;
+        final long gcCount;
+        final long gcTimeMilliseconds;
+
+        Result(Run run, double elapsedMilliseconds, double warmupMilliseconds, StatisticsAggregator statistics, long heapUsedBytes) {
+            this.run = run;
+            this.elapsedMilliseconds = elapsedMilliseconds;
+            this.warmupMilliseconds = warmupMilliseconds;
+            this.numOfWarmupMessagesConsumed = statistics.numOfWarmupMessagesConsumed;
+            this.numOfMessagesConsumed = statistics.numOfMessagesConsumed;
+            this.numOfMessagesSent = statistics.numOfMessagesSent;
+            this.numOfMessagesReordered = statistics.numOfMessagesReordered;
+            this.processTimes = statistics.processTimes;
+            this.endToEndTimes = statistics.endToEndTimes;
+            this.heapUsedBytes = heapUsedBytes;
+            this.consumerAllocatedBytesPerMessage = statistics.allocatedBytesPerMessage(statistics.consumerAllocatedBytes);
+            this.spammerAllocatedBytesPerMessage = statistics.allocatedBytesPerMessage(statistics.spammerAllocatedBytes);
+            this.heapPeakBytes = statistics.counter(MemoryAccount.HEAP_PEAK);
+            this.gcCount = statistics.counter(MemoryAccount.GC_COUNT);
+            this.gcTimeMilliseconds = statistics.counter(MemoryAccount.GC_TIME);
+        }
+
+        double throughput() {
+            return numOfMessagesConsumed * 1000.0 / elapsedMilliseconds;
+        }
+
+        /** Throughput of the warmup phase, 0 without one */
+        double warmupThroughput() {
+            return warmupMilliseconds > 0 ? numOfWarmupMessagesConsumed * 1000.0 / warmupMilliseconds : 0.0;
+        }
+    }
+
+    private ExperimentSweep(List<Run> runs, int containers, String spammerOptions, String consumerOptions, String output) {
+        this.runs = Collections.unmodifiableList(runs);
+        this.containers = containers;
+        this.spammerOptions = spammerOptions;
+        this.consumerOptions = consumerOptions;
+        this.output = output;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the configuration is not valid
+     */
+    static ExperimentSweep load(String path) throws IOException {
+        Properties configuration = new Properties();
+        try (InputStream in = new FileInputStream(path)) {
+            configuration.load(in);
+        }
+        int[] spammers = parseInts(configuration, "spammers", "1");
+        int[] consumers = parseInts(configuration, "consumers", "1");
+        int[] messages = parseInts(configuration, "messages", "1000");
+        int[] sizes = parseInts(configuration, "size", "10");
+        int[] batches = parseInts(configuration, "batch", "1");
+        String[] consumerClasses = configuration.getProperty("consumer", "MessageConsumingAgent").split(",");
+        int warmup = Integer.parseInt(configuration.getProperty("warmup", "1").trim());
+        int repeats = Integer.parseInt(configuration.getProperty("repeats", "3").trim());
+        int containers = Integer.parseInt(configuration.getProperty("containers", "1").trim());
+        if (warmup < 0 || repeats < 1 || containers < 1) {
+            throw new IllegalArgumentException("Expected warmup >= 0, repeats >= 1 and containers >= 1");
+        }
+        List<Run> runs = new ArrayList<>();
+        int point = 0;
+        for (int numberOfSpammers : spammers) {
+            for (int numberOfConsumers : consumers) {
+                for (String consumer : consumerClasses) {
+                    for (int numberOfMessages : messages) {
+                        for (int size : sizes) {
+                            for (int batch : batches) {
+                                for (int repeat = 0; repeat < warmup + repeats; repeat++) {
+                                    runs.add(new Run(point, repeat, repeat < warmup, numberOfSpammers, numberOfConsumers,
+                                            numberOfMessages, size, batch, consumer.trim()));
+                                }
+                                point++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return new ExperimentSweep(runs, containers, configuration.getProperty("spammerOptions", "").trim(),
+                configuration.getProperty("consumerOptions", "log=off").trim(), configuration.getProperty("output", "sweep").trim());
+    }
+
+    private static int[] parseInts(Properties configuration, String key, String defaultValue) {
+        String[] values = configuration.getProperty(key, defaultValue).split(",");
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i].trim());
+            if (result[i] < 1) {
+                throw new IllegalArgumentException("'" + key + "' values must be at least 1");
+            }
+        }
+        return result;
+    }
+
+    void record(Result result) {
+        results.add(result);
+    }
+
+    /**
+     * Write the results of all runs, warmup included, as CSV and JSON.
+     * Latencies are in milliseconds and throughput in messages per second.
+     */
+    void write() throws IOException {
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get(output + ".csv"), StandardCharsets.UTF_8))) {
+            csv.println("point,repeat,warmup,spammers,consumers,consumer,messages,size,batch,elapsed_ms,consumed,sent,"
+                    + "throughput,reordered,process_p50_ms,process_p99_ms,e2e_p50_ms,e2e_p90_ms,e2e_p99_ms,e2e_p999_ms,heap_used_bytes,"
+                    + "consumer_alloc_bytes_per_msg,spammer_alloc_bytes_per_msg,heap_peak_bytes,gc_count,gc_time_ms,"
+                    + "warmup_ms,warmup_consumed,warmup_throughput");
+            for (Result result : results) {
+                Run run = result.run;
+                csv.println(run.point + "," + run.repeat + "," + run.warmup + "," + run.spammers + "," + run.consumers + ","
+                        + run.consumer + "," + run.messages + "," + run.size + "," + run.batch + "," + result.elapsedMilliseconds
+                        + "," + result.numOfMessagesConsumed + "," + result.numOfMessagesSent + "," + result.throughput() + ","
+                        + result.numOfMessagesReordered + "," + millis(result.processTimes, 50.0) + ","
+                        + millis(result.processTimes, 99.0) + "," + millis(result.endToEndTimes, 50.0) + ","
+                        + millis(result.endToEndTimes, 90.0) + "," + millis(result.endToEndTimes, 99.0) + ","
+                        + millis(result.endToEndTimes, 99.9) + "," + result.heapUsedBytes + ","
+                        + result.consumerAllocatedBytesPerMessage + "," + result.spammerAllocatedBytesPerMessage + ","
+                        + result.heapPeakBytes + "," + result.gcCount + "," + result.gcTimeMilliseconds + ","
+                        + result.warmupMilliseconds + "," + result.numOfWarmupMessagesConsumed + "," + result.warmupThroughput());
+            }
+        }
+        try (PrintWriter json = new PrintWriter(Files.newBufferedWriter(Paths.get(output + ".json"), StandardCharsets.UTF_8))) {
+            json.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                Run run = result.run;
+                json.println("  {\"point\": " + run.point + ", \"repeat\": " + run.repeat + ", \"warmup\": " + run.warmup
+                        + ", \"spammers\": " + run.spammers + ", \"consumers\": " + run.consumers
+                        + ", \"consumer\": \"" + run.consumer + "\", \"messages\": " + run.messages + ", \"size\": " + run.size
+                        + ", \"batch\": " + run.batch + ", \"elapsedMs\": " + result.elapsedMilliseconds
+                        + ", \"consumed\": " + result.numOfMessagesConsumed + ", \"sent\": " + result.numOfMessagesSent
+                        + ", \"throughput\": " + result.throughput() + ", \"reordered\": " + result.numOfMessagesReordered
+                        + ", \"processMs\": " + percentiles(result.processTimes)
+                        + ", \"endToEndMs\": " + percentiles(result.endToEndTimes)
+                        + ", \"heapUsedBytes\": " + result.heapUsedBytes
+                        + ", \"consumerAllocBytesPerMsg\": " + result.consumerAllocatedBytesPerMessage
+                        + ", \"spammerAllocBytesPerMsg\": " + result.spammerAllocatedBytesPerMessage
+                        + ", \"heapPeakBytes\": " + result.heapPeakBytes + ", \"gcCount\": " + result.gcCount
+                        + ", \"gcTimeMs\": " + result.gcTimeMilliseconds + ", \"warmupMs\": " + result.warmupMilliseconds
+                        + ", \"warmupConsumed\": " + result.numOfWarmupMessagesConsumed
+                        + ", \"warmupThroughput\": " + result.warmupThroughput() + "}" + (i < results.size() - 1 ? "," : ""));
+            }
+            json.println("]");
+        }
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get(output + "-summary.csv"), StandardCharsets.UTF_8))) {
+            csv.println("point,spammers,consumers,consumer,messages,size,batch,runs,throughput_mean,throughput_stddev,throughput_cv,"
+                    + "throughput_min,throughput_max,e2e_p99_ms_mean,e2e_p99_ms_stddev,e2e_p99_ms_cv,warmup_throughput_mean");
+            for (List<Result> point : measuredPoints()) {
+                Run run = point.get(0).run;
+                double[] throughputs = new double[point.size()];
+                double[] endToEndP99s = new double[point.size()];
+                double[] warmupThroughputs = new double[point.size()];
+                for (int i = 0; i < point.size(); i++) {
+                    throughputs[i] = point.get(i).throughput();
+                    endToEndP99s[i] = millis(point.get(i).endToEndTimes, 99.0);
+                    warmupThroughputs[i] = point.get(i).warmupThroughput();
+                }
+                Spread throughput = new Spread(throughputs);
+                Spread endToEndP99 = new Spread(endToEndP99s);
+                csv.println(run.point + "," + run.spammers + "," + run.consumers + "," + run.consumer + "," + run.messages + ","
+                        + run.size + "," + run.batch + "," + point.size() + "," + throughput.mean + "," + throughput.stddev + ","
+                        + throughput.cv() + "," + throughput.min + "," + throughput.max + "," + endToEndP99.mean + ","
+                        + endToEndP99.stddev + "," + endToEndP99.cv() + "," + new Spread(warmupThroughputs).mean);
+            }
+        }
+    }
+
+    /**
+     * Throughput of each point over its measured runs, one line per point:
+     * mean, standard deviation and coefficient of variation.
+     */
+    List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        for (List<Result> point : measuredPoints()) {
+            double[] throughputs = new double[point.size()];
+            for (int i = 0; i < point.size(); i++) {
+                throughputs[i] = point.get(i).throughput();
+            }
+            Spread throughput = new Spread(throughputs);
+            lines.add("Point " + point.get(0).run.point + " - throughput over " + point.size() + " runs: mean " + throughput.mean
+                    + " msg/s, stddev " + throughput.stddev + " msg/s (CV " + throughput.cv() * 100 + "%), min "
+                    + throughput.min + " max " + throughput.max);
+        }
+        return lines;
+    }
+
+    /** Results of the measured runs, warmup runs left out, grouped by point in order */
+    private List<List<Result>> measuredPoints() {
+        List<List<Result>> points = new ArrayList<>();
+        for (Result result : results) {
+            if (result.run.warmup) {
+                continue;
+            }
+            List<Result> last = points.isEmpty() ? null : points.get(points.size() - 1);
+            if (last == null || last.get(0).run.point != result.run.point) {
+                last = new ArrayList<>();
+                points.add(last);
+            }
+            last.add(result);
+        }
+        return points;
+    }
+
+    /** Mean, sample standard deviation, minimum and maximum of a set of measures */
+    private static final class Spread {
+        final double mean;
+        final double stddev;
+        final double min;
+        final double max;
+
+        Spread(double[] values) {
+            double sum = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (double value : values) {
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            mean = sum / values.length;
+            double squares = 0;
+            for (double value : values) {
+                squares += (value - mean) * (value - mean);
+            }
+            stddev = values.length > 1 ? Math.sqrt(squares / (values.length - 1)) : 0.0;
+            this.min = min;
+            this.max = max;
+        }
+
+        /** Coefficient of variation, stddev / mean */
+        double cv() {
+            return mean != 0 ? stddev / mean : 0.0;
+        }
+    }
+
+    String output() {
+        return output;
+    }
+
+    private static double millis(LatencyHistogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000000.0;
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        return "{\"p50\": " + millis(histogram, 50.0) + ", \"p90\": " + millis(histogram, 90.0) + ", \"p99\": "
+                + millis(histogram, 99.0) + ", \"p99.9\": " + millis(histogram, 99.9) + ", \"max\": "
+                + histogram.getMax() / 1000000.0 + "}";
+    }
+}
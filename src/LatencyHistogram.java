@@ -0,0 +1,187 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Fixed-memory, log-bucketed histogram of latencies in nanoseconds, in the
+ * spirit of HdrHistogram. Values are grouped by their highest set bit and each
+ * power of two is split in SUB_BUCKET_COUNT linear sub-buckets, so the relative
+ * error of any reported value is below 1 / SUB_BUCKET_COUNT (~3%).
+ * Recording a value never allocates, which keeps it usable on the message hot
+ * path of the consumers. Histograms of several agents are merged by adding
+ * their counts, and can be shipped between agents with writeTo()/readFrom().
+ */
+public final class LatencyHistogram {
+
+    /** Number of bits used for the linear sub-buckets of each power of two */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+    /** Buckets needed to cover every non negative long value */
+    private static final int BUCKET_COUNT = 64 - SUB_BUCKET_BITS;
+    private static final int LENGTH = BUCKET_COUNT * SUB_BUCKET_COUNT;
+
+    private final long[] counts = new long[LENGTH];
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+    private double sum;
+
+    /**
+     * Record one latency value, in nanoseconds. Negative values (clock skew
+     * between hosts) are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Add all the values recorded by other histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < LENGTH; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        java.util.Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /** Smallest recorded value, or 0 when the histogram is empty */
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0.0 : sum / totalCount;
+    }
+
+    /**
+     * Value below or equal to which the given percentage of the recorded
+     * values fall. The result is the highest value equivalent to the bucket
+     * holding that percentile, capped by the largest recorded value.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Write the histogram, holding only the non empty buckets: min, max, sum,
+     * the number of non empty buckets and, for each, its index and count.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        int nonEmpty = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            if (counts[i] != 0) {
+                nonEmpty++;
+            }
+        }
+        out.writeLong(min);
+        out.writeLong(max);
+        out.writeDouble(sum);
+        out.writeInt(nonEmpty);
+        for (int i = 0; i < LENGTH; i++) {
+            if (counts[i] != 0) {
+                out.writeShort(i);
+                out.writeLong(counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Read a histogram written by writeTo().
+     * @throws IOException if the data is truncated or not a valid histogram
+     */
+    public static LatencyHistogram readFrom(DataInput in) throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.min = in.readLong();
+        histogram.max = in.readLong();
+        histogram.sum = in.readDouble();
+        int nonEmpty = in.readInt();
+        if (nonEmpty < 0 || nonEmpty > LENGTH) {
+            throw new IOException("Invalid number of histogram buckets: " + nonEmpty);
+        }
+        for (int i = 0; i < nonEmpty; i++) {
+            int index = in.readUnsignedShort();
+            long count = in.readLong();
+            if (index >= LENGTH || count <= 0) {
+                throw new IOException("Invalid histogram bucket: " + index + " with count " + count);
+            }
+            histogram.counts[index] += count;
+            histogram.totalCount += count;
+        }
+        return histogram;
+    }
+
+    static int indexOf(long value) {
+        int highestBit = 63 - Long.numberOfLeadingZeros(value | 1);
+        if (highestBit < SUB_BUCKET_BITS) {
+            // Small values are recorded exactly
+            return (int) value;
+        }
+        int bucket = highestBit - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> (bucket - 1)) & SUB_BUCKET_MASK;
+        return (bucket << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    /** Lowest value recorded in the given index */
+    static long valueAt(int index) {
+        int bucket = index >>> SUB_BUCKET_BITS;
+        long subBucket = index & SUB_BUCKET_MASK;
+        if (bucket == 0) {
+            return subBucket;
+        }
+        return (SUB_BUCKET_COUNT + subBucket) << (bucket - 1);
+    }
+
+    /** Highest value recorded in the given index */
+    static long highestEquivalentValue(int index) {
+        int bucket = index >>> SUB_BUCKET_BITS;
+        if (bucket == 0) {
+            return valueAt(index);
+        }
+        return valueAt(index) + (1L << (bucket - 1)) - 1;
+    }
+}
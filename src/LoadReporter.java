@@ -0,0 +1,44 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.util.Arrays;
+
+/**
+ * Consumer side of the least-loaded distribution of spam (see
+ * ConsumerSelector): a MCA reports its queue depth to each SA that asks for
+ * it in its messages (SpamMessages.DISTRIBUTE), every 'period' payloads
+ * consumed from that SA. Reports are INFORM messages in
+ * ConsumerSelector.LANGUAGE whose content is the depth.
+ * It must only be used from the agent thread.
+ */
+final class LoadReporter {
+
+    private final Agent agent;
+    /** Slot of the SA (see SenderRegister) -> payloads consumed since its last report */
+    private int[] consumed = new int[1];
+
+    LoadReporter(Agent agent) {
+        this.agent = agent;
+    }
+
+    /**
+     * Record that 'count' payloads of the SA were consumed, reporting the
+     * queue depth once 'period' of them were.
+     */
+    void consumed(int slot, AID sender, int count, int period, int queueDepth) {
+        if (slot >= consumed.length) {
+            consumed = Arrays.copyOf(consumed, Math.max(consumed.length * 2, slot + 1));
+        }
+        consumed[slot] += count;
+        if (consumed[slot] < period) {
+            return;
+        }
+        consumed[slot] = 0;
+        ACLMessage report = new ACLMessage(ACLMessage.INFORM);
+        report.addReceiver(sender);
+        report.setLanguage(ConsumerSelector.LANGUAGE);
+        report.setContent(Integer.toString(queueDepth));
+        agent.send(report);
+    }
+}
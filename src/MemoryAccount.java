@@ -0,0 +1,133 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memory used by an agent over the measured window of a run, from start() to
+ * addTo(), as the counters of its StatisticsRecord:
+ * - ALLOCATED_BYTES: bytes allocated by the threads of the agent, i.e. the
+ *   thread that called start() and those added with addThread(), e.g. the
+ *   workers of a parallel MCA or the shards of a SA. Only if the JVM measures
+ *   the allocations of each thread (ThreadMXBean.getThreadAllocatedBytes).
+ * - GC_COUNT, GC_TIME: collections of the JVM and the time they took, over
+ *   all collectors (GarbageCollectorMXBean).
+ * - HEAP_USED, HEAP_PEAK: heap used by the JVM at the end, and its peak over
+ *   the samples taken by sample(), e.g. every second by AgentMetrics.
+ * GC and heap counters are measured for the whole JVM, so they are prefixed
+ * with StatisticsRecord.JVM_COUNTER.
+ * It can be used from any thread.
+ */
+final class MemoryAccount {
+
+    static final String ALLOCATED_BYTES = "alloc.bytes";
+    static final String GC_COUNT = StatisticsRecord.JVM_COUNTER + "gc.count";
+    static final String GC_TIME = StatisticsRecord.JVM_COUNTER + "gc.time.ms";
+    static final String HEAP_USED = StatisticsRecord.JVM_COUNTER + "heap.used.bytes";
+    static final String HEAP_PEAK = StatisticsRecord.JVM_COUNTER + "heap.peak.bytes";
+
+    /** Allocations of each thread, or null if the JVM does not measure them */
+    private final com.sun.management.ThreadMXBean allocations;
+    /** Thread id -> bytes it had allocated when it was added */
+    private final Map<Long, Long> threads = new HashMap<>();
+    /** Bytes allocated by the threads removed */
+    private long retiredBytes = 0;
+    private long gcCountStart;
+    private long gcTimeStart;
+    private long heapPeak = 0;
+    private volatile boolean started = false;
+
+    MemoryAccount() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemoryEnabled()) {
+            allocations = (com.sun.management.ThreadMXBean) threadBean;
+        } else {
+            allocations = null;
+        }
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    /** Start the window, accounting the calling thread. Later calls do nothing */
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        long[] gc = collections();
+        gcCountStart = gc[0];
+        gcTimeStart = gc[1];
+        heapPeak = heapUsed();
+        for (Map.Entry<Long, Long> thread : threads.entrySet()) {
+            thread.setValue(allocated(thread.getKey()));
+        }
+        threads.put(Thread.currentThread().getId(), allocated(Thread.currentThread().getId()));
+        started = true;
+    }
+
+    /** Account the allocations of the thread from now on, or from start() */
+    synchronized void addThread(Thread thread) {
+        threads.put(thread.getId(), allocated(thread.getId()));
+    }
+
+    /** Stop accounting the thread, keeping what it allocated. It must be called by the thread before it ends */
+    synchronized void removeThread(Thread thread) {
+        Long start = threads.remove(thread.getId());
+        if (start != null && started) {
+            retiredBytes += Math.max(allocated(thread.getId()) - start, 0);
+        }
+    }
+
+    synchronized void sample() {
+        heapPeak = Math.max(heapPeak, heapUsed());
+    }
+
+    /** Add the counters of the window so far to the record */
+    synchronized void addTo(StatisticsRecord record) {
+        if (!started) {
+            return;
+        }
+        long[] gc = collections();
+        long heap = heapUsed();
+        heapPeak = Math.max(heapPeak, heap);
+        record.counters.put(GC_COUNT, gc[0] - gcCountStart);
+        record.counters.put(GC_TIME, gc[1] - gcTimeStart);
+        record.counters.put(HEAP_USED, heap);
+        record.counters.put(HEAP_PEAK, heapPeak);
+        if (allocations != null) {
+            long bytes = retiredBytes;
+            for (Map.Entry<Long, Long> thread : threads.entrySet()) {
+                long allocated = allocations.getThreadAllocatedBytes(thread.getKey());
+                // -1 once the thread has ended
+                if (allocated >= 0) {
+                    bytes += Math.max(allocated - thread.getValue(), 0);
+                }
+            }
+            record.counters.put(ALLOCATED_BYTES, bytes);
+        }
+    }
+
+    /** Bytes allocated by the thread so far, 0 if it has not started or is not measured */
+    private long allocated(long threadId) {
+        return allocations != null ? Math.max(allocations.getThreadAllocatedBytes(threadId), 0) : 0;
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /** Collections of the JVM and their time in milliseconds */
+    private static long[] collections() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(collector.getCollectionCount(), 0);
+            time += Math.max(collector.getCollectionTime(), 0);
+        }
+        return new long[]{count, time};
+    }
+}
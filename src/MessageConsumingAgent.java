@@ -3,23 +3,45 @@ import jade.core.Agent;
 import jade.core.behaviours.Behaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.domain.FIPAException;
 import jade.lang.acl.ACLMessage;
-import jade.lang.acl.MessageTemplate;
 import jade.util.Logger;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
 
 /**
  * Message Consuming Agent (MCA). Receives and processes the messages sent by
  * SpammerAgent's. When all messages have been processed, it sends message DONE to the
  * ExperimentMasterAgent. It knows how many messages from each SA should receive.
  * Run:
- * java jade.Boot -container MessageConsumerAgentx:MessageConsumerAgent(N)
- * - N: number of messages to receive from each SpammerAgent.
- * Note: Spammer Agents (SA's) must be running before run MessageConsumerAgent's.
+ * java jade.Boot -container MessageConsumerAgentx:MessageConsumerAgent(N[, options])
+ * - N: number of messages to receive from each SpammerAgent. SA's
+ *   distributing their messages among the MCA's tell how many they sent
+ *   instead (see ConsumerSelector), and get its queue depth if they ask.
+ * Options (key=value):
+ * - log: how processed messages are logged: all, off, sample:N or async (see MessageLog).
+ * - window: credits of each SA for flow control (see CreditGranter). It must
+ *   match the window of the SA's. Default 0, no flow control.
+ * - progress: seconds between PROGRESS reports to the EMA. Default 0, none.
+ * - metrics: how live metrics are exposed: jmx, off or http:PORT (see AgentMetrics). Default jmx.
+ * - metricsWindow: seconds covered by the live rates and latencies. Default 10.
+ * - aggregator: local name of the StatisticsAggregatorAgent of the container
+ *   to send the statistics to instead of the EMA. It is registered in the DF
+ *   with the service (see DirectoryCache.AGGREGATOR). Default none.
+ * - journal: directory to record every message consumed in, as
+ *   DIR/NAME.journal (see TrafficJournal). Default none.
+ * - drain: maximum nº of messages processed on each run of the consuming
+ *   behaviour. Each run goes through the scheduler of the agent, which is a
+ *   significant part of the cost of a small message when the mailbox is deep.
+ *   Default 1, one message per run.
+ * Statistics are sent to the EMA, or to its aggregator, as a StatisticsRecord.
+ * Warmup messages, sent before the measured ones when the EMA runs a warmup
+ * phase, are processed but neither measured nor counted in N (see WarmupTracker).
+ * SA's are followed in the DF (see DirectoryCache), so they can start before
+ * or after the MCA: it is done when all messages of every SA registered have
+ * been received.
  */
 public class MessageConsumingAgent extends Agent {
 
@@ -27,13 +49,35 @@ public class MessageConsumingAgent extends Agent {
     private static final long serialVersionUID = 9085335745014921813L;
     private int numberOfMessages;
 
-    private int numberOfSpammerAgents;
+    /** SA's registered in the DF, followed while the MCA runs */
+    private DirectoryCache spammerAgents;
+
+    private MessageLog messageLog;
+
+    /** Window of the flow control, or 0 if it is disabled */
+    private int window;
+
+    private CreditGranter creditGranter;
+
+    /** Milliseconds between PROGRESS reports, or 0 if they are disabled */
+    private long progressPeriod;
+
+    private AgentMetrics metrics;
+
+    /** Agent the statistics are sent to, the EMA or an aggregator */
+    private AID statisticsReceiver;
+
+    /** Journal of the messages consumed, or null */
+    private TrafficJournal journal;
+
+    /** Maximum nº of messages processed on each action() */
+    private int drain;
 
     @Override
     protected void setup() {
         // Get number of messages to receive from each SA
         Object[] args = getArguments();
-        if (args != null && args.length == 1) {
+        if (args != null && args.length >= 1) {
             numberOfMessages = Integer.parseInt((String) args[0]);
             logger.log(Logger.INFO, "Agent " + getLocalName() + " - Target: " + numberOfMessages + " msg");
         } else {
@@ -41,10 +85,34 @@ public class MessageConsumingAgent extends Agent {
             logger.log(Logger.INFO, "Agent " + getLocalName() + " - Target: " + numberOfMessages + " msg");
 
         }
+        try {
+            AgentArguments options = new AgentArguments(args, 1);
+            messageLog = MessageLog.create(options.get("log", "all"), logger, getLocalName());
+            window = options.getInt("window", 0);
+            progressPeriod = (long) (options.getDouble("progress", 0.0) * 1000);
+            statisticsReceiver = StatisticsRecord.receiver(options.get("aggregator", null));
+            drain = options.getInt("drain", 1);
+            if (drain < 1) {
+                throw new IllegalArgumentException("drain must be at least 1");
+            }
+            metrics = new AgentMetrics(this, options.getInt("metricsWindow", 10));
+            metrics.expose(options.get("metrics", "jmx"), logger);
+            journal = TrafficJournal.open(options.get("journal", null), getLocalName());
+        } catch (IllegalArgumentException | IOException e) {
+            logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Incorrect arguments", e);
+            doDelete();
+            return;
+        }
         // Register the message consuming service in the yellow pages
         ServiceDescription sd = new ServiceDescription();
         sd.setType("MessageConsumingAgent");
         sd.setName("MessageConsumingAgentService");
+        // So that aggregators and the EMA know the MCA's of each container
+        sd.addProperties(new Property(DirectoryCache.CONTAINER, here().getName()));
+        // And which aggregator covers them, if any
+        if (!statisticsReceiver.equals(StatisticsRecord.receiver(null))) {
+            sd.addProperties(new Property(DirectoryCache.AGGREGATOR, statisticsReceiver.getName()));
+        }
         DFAgentDescription dfd = new DFAgentDescription();
         dfd.setName(getAID());
         dfd.addServices(sd);
@@ -54,19 +122,59 @@ public class MessageConsumingAgent extends Agent {
             logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Cannot register with DF", e);
             doDelete();
         }
-        // Get number of Spamer Agents (SA)
-        sd = new ServiceDescription();
-        sd.setType("SpammerAgent");
-        dfd = new DFAgentDescription();
-        dfd.addServices(sd);
+        // Follow the Spamer Agents (SA), so that they can start before or after the MCA
+        spammerAgents = new DirectoryCache(this, "SpammerAgent");
         try {
-            DFAgentDescription[] result = DFService.search(this, dfd);
-            numberOfSpammerAgents = result.length;
+            spammerAgents.subscribe();
         } catch (FIPAException e) {
             logger.log(Logger.SEVERE, "Cannot get SpammerAgents", e);
         }
+        addBehaviour(spammerAgents);
+        if (window > 0) {
+            creditGranter = new CreditGranter(this, window, spammerAgents.size());
+        }
         // Add the behaviour consuming spam messages
-        addBehaviour(new MessageConsumingBehaviour());
+        final MessageConsumingBehaviour consumingBehaviour = new MessageConsumingBehaviour();
+        addBehaviour(consumingBehaviour);
+        spammerAgents.restartOnChange(consumingBehaviour);
+        addBehaviour(metrics);
+        if (progressPeriod > 0) {
+            consumingBehaviour.progressReporter = new ProgressReporter(this, progressPeriod, statisticsReceiver) {
+                private static final long serialVersionUID = 2716504826381904817L;
+
+                @Override
+                StatisticsRecord snapshot() {
+                    return consumingBehaviour.statistics(StatisticsRecord.Kind.PROGRESS);
+                }
+            };
+            addBehaviour(consumingBehaviour.progressReporter);
+        }
+    }
+
+    @Override
+    protected void takeDown() {
+        // Leave the yellow pages, so that agents started later do not count this one
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException e) {
+            logger.log(Logger.FINE, "Agent " + getLocalName() + " - Not registered with DF", e);
+        }
+        if (spammerAgents != null) {
+            spammerAgents.close();
+        }
+        if (messageLog != null) {
+            messageLog.close();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.log(Logger.WARNING, "Agent " + getLocalName() + " - Cannot close journal " + journal.file(), e);
+            }
+        }
     }
 
     /**
@@ -77,76 +185,144 @@ public class MessageConsumingAgent extends Agent {
 
         private static final long serialVersionUID = -5860119910249641199L;
         /** SA -> nº of msg received by it */
-        private static final String SEPERATOR = "_";
-        private Map<String, Integer> received; //
+        private final SenderRegister register;
         private int numOfMessagesProcessed = 0;
-        private double shortestMsgProcessTime = Double.MAX_VALUE;
-        private double longestMsgProcessTime = Double.MIN_VALUE;
+        /** Distribution of the time to process each message, in nanoseconds */
+        private final LatencyHistogram processTimes = new LatencyHistogram();
+        /** Distribution of the time from send to consumption of each message, in nanoseconds */
+        private final LatencyHistogram endToEndTimes = new LatencyHistogram();
+        /** Number of messages received with a lower sequence number than a previous one */
+        private int numOfMessagesReordered = 0;
+        private final SpamBatch.Reader batchReader = new SpamBatch.Reader();
+        /** Sender of the PROGRESS reports, stopped when done, or null */
+        private ProgressReporter progressReporter;
+        /** Payload bytes received, and those shared with their SA */
+        private final SharedPayloads.Counter payloadCounter = new SharedPayloads.Counter();
+        private final LoadReporter loadReporter = new LoadReporter(MessageConsumingAgent.this);
+        private final WarmupTracker warmupTracker = new WarmupTracker(MessageConsumingAgent.this);
 
         MessageConsumingBehaviour() {
             super();
-            this.received = new HashMap<>(numberOfSpammerAgents);
+            this.register = new SenderRegister(spammerAgents.size(), numberOfMessages);
         }
-        public void updateStatistics(double initialProcessTime){
-            double timeToProcessMsg = (double)System.nanoTime() - initialProcessTime;
-            if(timeToProcessMsg < shortestMsgProcessTime){
-                shortestMsgProcessTime = timeToProcessMsg;
-            }
-            if(timeToProcessMsg > longestMsgProcessTime){
-                longestMsgProcessTime = timeToProcessMsg;
+        public void updateStatistics(int sender, ACLMessage msg, long initialProcessTime){
+            if (SpamBatch.isBatch(msg)) {
+                // Each payload of a batch is accounted as one message, sharing the process time
+                batchReader.reset(msg);
+                long processTime = (System.nanoTime() - initialProcessTime) / SpamBatch.payloadCount(msg);
+                long sendTime = SpamMessages.sendTimeOf(msg);
+                while (batchReader.next()) {
+                    long intendedTime = batchReader.intendedTime();
+                    updateStatistics(sender, batchReader.sequence(), intendedTime >= 0 ? intendedTime : sendTime, processTime);
+                }
+            } else {
+                updateStatistics(sender, SpamMessages.sequenceOf(msg), SpamMessages.startTimeOf(msg),
+                        System.nanoTime() - initialProcessTime);
             }
+        }
+
+        private void updateStatistics(int sender, long sequence, long sendTime, long processTime){
+            processTimes.record(processTime);
+            metrics.recordProcess(processTime);
             numOfMessagesProcessed++;
+            // End-to-end latency and ordering, using the stamp added by the SA
+            if (sendTime >= 0) {
+                long endToEndTime = (SpamMessages.currentTimeMicros() - sendTime) * 1000;
+                endToEndTimes.record(endToEndTime);
+                metrics.recordEndToEnd(endToEndTime);
+            }
+            if (sequence >= 0 && !register.checkOrder(sender, sequence)) {
+                numOfMessagesReordered++;
+            }
         }
         @Override
         public void action() {
-            // Receive spam messages
-            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
-                    MessageTemplate.MatchLanguage(SpammerAgent.LANGUAGE));
-
-            double timeToProcessMessageInitial = System.nanoTime();
-            ACLMessage msg = myAgent.receive(mt);
-            if (msg != null) {
-                logger.log(Logger.INFO, "Agent " + getLocalName() + " - Message processed: " + msg.getContent());
+            // Receive spam messages, up to 'drain' of them before going back to the scheduler
+            long timeToProcessMessageInitial = System.nanoTime();
+            ACLMessage msg = myAgent.receive(SpamMessages.TEMPLATE);
+            if (msg == null) {
+                // No spam left, so looking for the END's and WARM's scans a short mailbox
+                receiveEnds();
+                warmupTracker.check(spammerAgents.names());
+                block();
+                return;
+            }
+            for (int i = 1; msg != null; i++) {
+                messageLog.processed(msg);
                 // Update register of received messages
-                String sender = msg.getSender().getName();
-                if (received.containsKey(sender)) {
-                    received.put(sender, received.get(sender) + 1);
-
-
+                int sender = register.slotOf(msg.getSender());
+                int loadReportPeriod = SpamMessages.loadReportPeriodOf(msg);
+                boolean warmup = SpamMessages.isWarmup(msg);
+                if (warmup) {
+                    warmupTracker.processed(msg.getSender(), SpamBatch.payloadCount(msg));
                 } else {
-                    received.put(sender, 1);
+                    if (loadReportPeriod >= 0) {
+                        register.expectUntold(sender);
+                    }
+                    register.add(sender, SpamBatch.payloadCount(msg));
+                    metrics.received(SpamBatch.payloadCount(msg));
+                    payloadCounter.count(msg);
+                    if (journal != null) {
+                        journal.consumed(msg);
+                    }
+                }
+                if (creditGranter != null) {
+                    creditGranter.consumed(sender, msg.getSender(), SpamBatch.payloadCount(msg));
+                }
+                if (loadReportPeriod > 0) {
+                    loadReporter.consumed(sender, msg.getSender(), SpamBatch.payloadCount(msg), loadReportPeriod,
+                            myAgent.getCurQueueSize());
+                }
+                if (!warmup) {
+                    updateStatistics(sender, msg, timeToProcessMessageInitial);
                 }
-                updateStatistics(timeToProcessMessageInitial);
                 timeToProcessMessageInitial = System.nanoTime();
-            } else {
-                block();
+                msg = i < drain ? myAgent.receive(SpamMessages.TEMPLATE) : null;
+            }
+        }
+
+        /** Expect the nº of msg told by the SA's distributing their messages */
+        private void receiveEnds() {
+            ACLMessage end = myAgent.receive(SpamMessages.END_TEMPLATE);
+            while (end != null) {
+                register.expect(register.slotOf(end.getSender()), Integer.parseInt(end.getContent()));
+                end = myAgent.receive(SpamMessages.END_TEMPLATE);
             }
         }
 
         @Override
         public boolean done() {
-            // Check all expected agents are registered
-            if (received.size() != numberOfSpammerAgents) {
+            // Check all expected agents are registered and all their messages have been received
+            if (!register.isComplete(spammerAgents.names())) {
                 return false;
             }
-            // Check if all messages have been received
-            for (int i : received.values()) {
-                if (i != numberOfMessages) {
-                    return false;
-                }
+            if (progressReporter != null) {
+                progressReporter.stop();
             }
             // Send DONE message to EMA
-            ACLMessage doneMsg = new ACLMessage(ACLMessage.INFORM);
-            doneMsg.addReceiver(new AID("ExperimentMasterAgent", AID.ISLOCALNAME));
             // Convert nanoseconds to milliseconds by dividing by a million
-            shortestMsgProcessTime /= 1000000;
-            longestMsgProcessTime /= 1000000;
-            // Encode all statistics of message processing in done message
-            doneMsg.setContent(ExperimentMasterAgent.DONE + SEPERATOR + numOfMessagesProcessed + SEPERATOR + shortestMsgProcessTime + SEPERATOR + longestMsgProcessTime);
-            logger.log(logger.INFO, "Sending statistics, longestTime: " + longestMsgProcessTime + " shortestTime: " + shortestMsgProcessTime + " NumOfMessagesProcessed: " + numOfMessagesProcessed);
-            myAgent.send(doneMsg);
+            double shortestMsgProcessTime = processTimes.getMin() / 1000000.0;
+            double longestMsgProcessTime = processTimes.getMax() / 1000000.0;
+            logger.log(logger.INFO, "Sending statistics, longestTime: " + longestMsgProcessTime + " shortestTime: " + shortestMsgProcessTime + " NumOfMessagesProcessed: " + numOfMessagesProcessed + " NumOfMessagesReordered: " + numOfMessagesReordered);
+            statistics(StatisticsRecord.Kind.DONE).send(myAgent, statisticsReceiver);
             return true;
         }
+
+        /** Statistics of all messages processed so far */
+        private StatisticsRecord statistics(StatisticsRecord.Kind kind) {
+            StatisticsRecord record = new StatisticsRecord(kind);
+            record.numOfMessagesProcessed = numOfMessagesProcessed;
+            record.numOfMessagesReordered = numOfMessagesReordered;
+            record.processTimes = processTimes;
+            record.endToEndTimes = endToEndTimes;
+            for (int slot = 0; slot < register.size(); slot++) {
+                record.senders.put(register.nameOf(slot), (long) register.received(slot));
+            }
+            metrics.memory().addTo(record);
+            payloadCounter.addTo(record);
+            record.addPlacementCounters(here().getName(), spammerAgents);
+            return record;
+        }
     }
 
 
@@ -0,0 +1,566 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.Behaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.util.Logger;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Message Consuming Agent (MCA) that processes messages in a pool of worker
+ * threads. JADE runs all behaviours of an agent in a single thread, so the
+ * agent thread only drains the mailbox and hands each message to the pool.
+ * When all messages have been processed, it sends message DONE to the
+ * ExperimentMasterAgent, like MessageConsumingAgent.
+ * Run:
+ * java jade.Boot -container MCAx:MessageConsumingAgentParallel(N[, options])
+ * - N: number of messages to receive from each SpammerAgent. SA's
+ *   distributing their messages among the MCA's tell how many they sent
+ *   instead (see ConsumerSelector), and get its queue depth if they ask.
+ * Options (key=value):
+ * - threads: number of worker threads. Default: number of available processors.
+ * - log: how received messages are logged: all, off, sample:N or async (see
+ *   MessageLog). They are logged by the agent thread when handed to the workers.
+ * - window: credits of each SA for flow control (see CreditGranter). It must
+ *   match the window of the SA's. Default 0, no flow control.
+ * - progress: seconds between PROGRESS reports to the EMA. Default 0, none.
+ *   They only count the messages, as the workers own the latency histograms.
+ * - metrics: how live metrics are exposed: jmx, off or http:PORT (see AgentMetrics).
+ *   Default jmx. The queue depth is the number of messages waiting for a worker.
+ * - metricsWindow: seconds covered by the live rates and latencies. Default 10.
+ * - aggregator: local name of the StatisticsAggregatorAgent of the container
+ *   to send the statistics to instead of the EMA. It is registered in the DF
+ *   with the service (see DirectoryCache.AGGREGATOR). Default none.
+ * - journal: directory to record every message consumed in, as
+ *   DIR/NAME.journal (see TrafficJournal). Default none.
+ *   They are recorded by the workers once processed, warmup messages excluded.
+ * Statistics are sent to the EMA, or to its aggregator, as a StatisticsRecord.
+ * Warmup messages, sent before the measured ones when the EMA runs a warmup
+ * phase, are processed but neither measured nor counted in N (see WarmupTracker).
+ * SA's are followed in the DF (see DirectoryCache), so they can start before
+ * or after the MCA: it is done when all messages of every SA registered have
+ * been received.
+ */
+public class MessageConsumingAgentParallel extends Agent {
+
+    private final Logger logger = Logger.getMyLogger(getClass().getName());
+    private static final long serialVersionUID = -2174957362014522613L;
+    private int numberOfMessages;
+
+    /** SA's registered in the DF, followed while the MCA runs */
+    private DirectoryCache spammerAgents;
+
+    private int numberOfThreads;
+
+    private ExecutorService workers;
+
+    /** Messages handed to the workers and not taken by any yet */
+    private BlockingQueue<Runnable> workQueue;
+
+    private MessageLog messageLog;
+
+    /** Window of the flow control, or 0 if it is disabled */
+    private int window;
+
+    private CreditGranter creditGranter;
+
+    /** Milliseconds between PROGRESS reports, or 0 if they are disabled */
+    private long progressPeriod;
+
+    private AgentMetrics metrics;
+
+    /** Agent the statistics are sent to, the EMA or an aggregator */
+    private AID statisticsReceiver;
+
+    /** Journal of the messages consumed, or null */
+    private TrafficJournal journal;
+
+    private ParallelMessageConsumingBehaviour consumingBehaviour;
+
+    @Override
+    protected void setup() {
+        // Get number of messages to receive from each SA and size of the pool
+        Object[] args = getArguments();
+        numberOfMessages = 1;
+        numberOfThreads = Runtime.getRuntime().availableProcessors();
+        if (args != null && args.length >= 1) {
+            numberOfMessages = Integer.parseInt((String) args[0]);
+        }
+        try {
+            AgentArguments options = new AgentArguments(args, 1);
+            numberOfThreads = options.getInt("threads", numberOfThreads);
+            messageLog = MessageLog.create(options.get("log", "all"), logger, getLocalName());
+            window = options.getInt("window", 0);
+            progressPeriod = (long) (options.getDouble("progress", 0.0) * 1000);
+            statisticsReceiver = StatisticsRecord.receiver(options.get("aggregator", null));
+            metrics = new AgentMetrics(this, options.getInt("metricsWindow", 10)) {
+                private static final long serialVersionUID = -8127436029185562391L;
+
+                @Override
+                protected void sample() {
+                    setQueueDepth(workQueue.size());
+                    consumingBehaviour.sampleWorkers(this);
+                }
+            };
+            metrics.expose(options.get("metrics", "jmx"), logger);
+            journal = TrafficJournal.open(options.get("journal", null), getLocalName());
+        } catch (IllegalArgumentException | IOException e) {
+            logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Incorrect arguments", e);
+            doDelete();
+            return;
+        }
+        logger.log(Logger.INFO, "Agent " + getLocalName() + " - Target: " + numberOfMessages + " msg / " + numberOfThreads + " threads");
+        // A fixed thread pool, keeping its queue to report its depth
+        workQueue = new LinkedBlockingQueue<>();
+        workers = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0L, TimeUnit.MILLISECONDS, workQueue, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, getLocalName() + "-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                metrics.memory().addThread(thread);
+                return thread;
+            }
+        });
+        // Register the message consuming service in the yellow pages
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType("MessageConsumingAgent");
+        sd.setName("MessageConsumingAgentService");
+        // So that aggregators and the EMA know the MCA's of each container
+        sd.addProperties(new Property(DirectoryCache.CONTAINER, here().getName()));
+        // And which aggregator covers them, if any
+        if (!statisticsReceiver.equals(StatisticsRecord.receiver(null))) {
+            sd.addProperties(new Property(DirectoryCache.AGGREGATOR, statisticsReceiver.getName()));
+        }
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.setName(getAID());
+        dfd.addServices(sd);
+        try {
+            DFService.register(this, dfd);
+        } catch (FIPAException e) {
+            logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Cannot register with DF", e);
+            doDelete();
+        }
+        // Follow the Spamer Agents (SA), so that they can start before or after the MCA
+        spammerAgents = new DirectoryCache(this, "SpammerAgent");
+        try {
+            spammerAgents.subscribe();
+        } catch (FIPAException e) {
+            logger.log(Logger.SEVERE, "Cannot get SpammerAgents", e);
+        }
+        addBehaviour(spammerAgents);
+        if (window > 0) {
+            creditGranter = new CreditGranter(this, window, spammerAgents.size());
+        }
+        // Add the behaviour dispatching spam messages to the workers
+        consumingBehaviour = new ParallelMessageConsumingBehaviour();
+        addBehaviour(consumingBehaviour);
+        spammerAgents.restartOnChange(consumingBehaviour);
+        addBehaviour(metrics);
+        if (progressPeriod > 0) {
+            consumingBehaviour.progressReporter = new ProgressReporter(this, progressPeriod, statisticsReceiver) {
+                private static final long serialVersionUID = 5530473937462271839L;
+
+                @Override
+                StatisticsRecord snapshot() {
+                    return consumingBehaviour.statistics(StatisticsRecord.Kind.PROGRESS);
+                }
+            };
+            addBehaviour(consumingBehaviour.progressReporter);
+        }
+    }
+
+    @Override
+    protected void takeDown() {
+        // Leave the yellow pages, so that agents started later do not count this one
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException e) {
+            logger.log(Logger.FINE, "Agent " + getLocalName() + " - Not registered with DF", e);
+        }
+        if (spammerAgents != null) {
+            spammerAgents.close();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        if (messageLog != null) {
+            messageLog.close();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.log(Logger.WARNING, "Agent " + getLocalName() + " - Cannot close journal " + journal.file(), e);
+            }
+        }
+    }
+
+    /**
+     * Statistics of the messages processed by one worker thread. Each worker
+     * only writes its own instance, so recording needs no synchronization,
+     * except for the latencies of the current interval of the live metrics,
+     * which the agent thread takes every second. They are guarded by the
+     * instance.
+     */
+    private static class WorkerStatistics {
+        private int numOfMessagesProcessed = 0;
+        /** Time from dispatch to the end of processing, including the wait in the pool */
+        private final LatencyHistogram processTimes = new LatencyHistogram();
+        private final LatencyHistogram endToEndTimes = new LatencyHistogram();
+        private final LatencyHistogram intervalProcessTimes = new LatencyHistogram();
+        private final LatencyHistogram intervalEndToEndTimes = new LatencyHistogram();
+        private final SpamBatch.Reader batchReader = new SpamBatch.Reader();
+    }
+
+    /**
+     * Messages of one SA processed by the workers, and those expected from it.
+     * The workers count them, the agent thread sets the expected ones. The SA
+     * is complete once both are known to match, by whichever thread sees it.
+     */
+    private static final class SenderProgress {
+        private final AtomicInteger processed = new AtomicInteger();
+        /** Nº of msg expected, or SenderRegister.UNTOLD */
+        private volatile int expected;
+        private final AtomicBoolean complete = new AtomicBoolean();
+
+        SenderProgress(int expected) {
+            this.expected = expected;
+        }
+    }
+
+    /**
+     * Drain the mailbox on the agent thread and hand each message to the
+     * workers. Send DONE message to EMA when all messages have been processed.
+     */
+    private class ParallelMessageConsumingBehaviour extends Behaviour {
+
+        private static final long serialVersionUID = 6601563416273954028L;
+        /** SA -> slot, and order of the messages received from it. Only used by the agent thread */
+        private final SenderRegister register = new SenderRegister(spammerAgents.size(), numberOfMessages);
+        /**
+         * Slot -> msg processed from the SA. The array is only used by the
+         * agent thread, the counters are updated by the workers.
+         */
+        private SenderProgress[] received = new SenderProgress[Math.max(spammerAgents.size(), 1)];
+        /** Number of SA's whose messages have all been processed */
+        private final AtomicInteger completedSpammerAgents = new AtomicInteger();
+        /** Statistics of every worker, merged when all messages have been processed */
+        private final List<WorkerStatistics> allWorkerStatistics = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<WorkerStatistics> workerStatistics = new ThreadLocal<WorkerStatistics>() {
+            @Override
+            protected WorkerStatistics initialValue() {
+                WorkerStatistics statistics = new WorkerStatistics();
+                allWorkerStatistics.add(statistics);
+                return statistics;
+            }
+        };
+        /** Statistics of the warmup messages of each worker, processed the same way but discarded */
+        private final ThreadLocal<WorkerStatistics> warmupStatistics = new ThreadLocal<WorkerStatistics>() {
+            @Override
+            protected WorkerStatistics initialValue() {
+                return new WorkerStatistics();
+            }
+        };
+        /** Warmup messages handed to the workers and not processed yet */
+        private final AtomicInteger warmupMessagesInProgress = new AtomicInteger();
+        /** Number of messages received with a lower sequence number than a previous one, in mailbox order */
+        private int numOfMessagesReordered = 0;
+        private final MessageTemplate mt = SpamMessages.TEMPLATE;
+        /** Sender of the PROGRESS reports, stopped when done, or null */
+        private ProgressReporter progressReporter;
+        /** Payload bytes received, and those shared with their SA */
+        private final SharedPayloads.Counter payloadCounter = new SharedPayloads.Counter();
+        private final LoadReporter loadReporter = new LoadReporter(MessageConsumingAgentParallel.this);
+        private final WarmupTracker warmupTracker = new WarmupTracker(MessageConsumingAgentParallel.this);
+
+        @Override
+        public void action() {
+            // Hand all spam messages in the mailbox to the workers
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                // No spam left, so looking for the END's and WARM's scans a short mailbox
+                receiveEnds();
+                boolean warmingUp = warmupMessagesInProgress.get() > 0;
+                if (!warmingUp) {
+                    warmupTracker.check(spammerAgents.names());
+                }
+                // Do not sleep if the workers completed meanwhile, done() will send DONE
+                if (!allSpammerAgentsDone()) {
+                    block();
+                    // The worker processing the last warmup message may have restarted it before block()
+                    if (warmingUp && warmupMessagesInProgress.get() == 0) {
+                        restart();
+                    }
+                }
+                return;
+            }
+            while (msg != null) {
+                messageLog.log("Message received: ", msg);
+                if (SpamMessages.isWarmup(msg)) {
+                    warmUp(msg);
+                    msg = myAgent.receive(mt);
+                    continue;
+                }
+                int sender = register.slotOf(msg.getSender());
+                SenderProgress progress = progressOf(sender);
+                int loadReportPeriod = SpamMessages.loadReportPeriodOf(msg);
+                if (loadReportPeriod >= 0) {
+                    // Before any of its messages is handed to the workers
+                    register.expectUntold(sender);
+                    if (progress.expected != register.expected(sender)) {
+                        progress.expected = register.expected(sender);
+                    }
+                }
+                long sequence = SpamMessages.sequenceOf(msg);
+                if (sequence >= 0 && !register.checkOrder(sender, sequence)) {
+                    numOfMessagesReordered++;
+                }
+                CreditGranter.Account account = creditGranter != null ? creditGranter.accountOf(sender, msg.getSender()) : null;
+                workers.execute(new ProcessMessageTask(msg, progress, account, System.nanoTime()));
+                metrics.received(SpamBatch.payloadCount(msg));
+                payloadCounter.count(msg);
+                if (loadReportPeriod > 0) {
+                    loadReporter.consumed(sender, msg.getSender(), SpamBatch.payloadCount(msg), loadReportPeriod,
+                            workQueue.size() + myAgent.getCurQueueSize());
+                }
+                msg = myAgent.receive(mt);
+            }
+        }
+
+        /**
+         * Hand a warmup message to the workers, out of the register and of
+         * the statistics. It is accounted once handed, but reported only
+         * once the workers have processed all of them.
+         */
+        private void warmUp(ACLMessage msg) {
+            int sender = register.slotOf(msg.getSender());
+            int count = SpamBatch.payloadCount(msg);
+            warmupTracker.processed(msg.getSender(), count);
+            CreditGranter.Account account = creditGranter != null ? creditGranter.accountOf(sender, msg.getSender()) : null;
+            warmupMessagesInProgress.incrementAndGet();
+            workers.execute(new ProcessMessageTask(msg, null, account, System.nanoTime()));
+            int loadReportPeriod = SpamMessages.loadReportPeriodOf(msg);
+            if (loadReportPeriod > 0) {
+                loadReporter.consumed(sender, msg.getSender(), count, loadReportPeriod, workQueue.size() + myAgent.getCurQueueSize());
+            }
+        }
+
+        /** Expect the nº of msg told by the SA's distributing their messages */
+        private void receiveEnds() {
+            ACLMessage end = myAgent.receive(SpamMessages.END_TEMPLATE);
+            while (end != null) {
+                int sender = register.slotOf(end.getSender());
+                int total = Integer.parseInt(end.getContent());
+                register.expect(sender, total);
+                SenderProgress progress = progressOf(sender);
+                progress.expected = total;
+                if (progress.processed.get() >= total) {
+                    complete(progress);
+                }
+                end = myAgent.receive(SpamMessages.END_TEMPLATE);
+            }
+        }
+
+        /** Count the SA as complete once, and wake up the behaviour to check whether it was the last one */
+        private void complete(SenderProgress progress) {
+            if (progress.complete.compareAndSet(false, true)) {
+                completedSpammerAgents.incrementAndGet();
+                restart();
+            }
+        }
+
+        private SenderProgress progressOf(int sender) {
+            if (sender == received.length) {
+                received = Arrays.copyOf(received, received.length * 2);
+            }
+            SenderProgress progress = received[sender];
+            if (progress == null) {
+                progress = new SenderProgress(numberOfMessages);
+                received[sender] = progress;
+            }
+            return progress;
+        }
+
+        /**
+         * Process one message in a worker thread and account it for its SA. The
+         * worker that completes a SA wakes up the behaviour, which sends the
+         * DONE message from the agent thread once every SA registered is complete.
+         */
+        private class ProcessMessageTask implements Runnable {
+
+            private final ACLMessage msg;
+            /** Progress of the SA, or null for a warmup message */
+            private final SenderProgress progress;
+            /** Flow control account of the SA, or null if flow control is disabled */
+            private final CreditGranter.Account account;
+            private final long dispatchTime;
+
+            ProcessMessageTask(ACLMessage msg, SenderProgress progress, CreditGranter.Account account, long dispatchTime) {
+                this.msg = msg;
+                this.progress = progress;
+                this.account = account;
+                this.dispatchTime = dispatchTime;
+            }
+
+            @Override
+            public void run() {
+                WorkerStatistics statistics = progress != null ? workerStatistics.get() : warmupStatistics.get();
+                int count = SpamBatch.payloadCount(msg);
+                if (SpamBatch.isBatch(msg)) {
+                    long processTime = (System.nanoTime() - dispatchTime) / count;
+                    long sendTime = SpamMessages.sendTimeOf(msg);
+                    statistics.batchReader.reset(msg);
+                    while (statistics.batchReader.next()) {
+                        long intendedTime = statistics.batchReader.intendedTime();
+                        record(statistics, processTime, intendedTime >= 0 ? intendedTime : sendTime);
+                    }
+                } else {
+                    record(statistics, System.nanoTime() - dispatchTime, SpamMessages.startTimeOf(msg));
+                }
+                // Recorded by the worker, so that the agent thread only hands the messages over
+                if (journal != null && progress != null) {
+                    journal.consumed(msg);
+                }
+                // Count the messages only once their statistics are recorded
+                if (account != null) {
+                    creditGranter.consumed(account, count);
+                }
+                if (progress == null) {
+                    // Wake up the behaviour to report the warmup once the last one is processed
+                    if (warmupMessagesInProgress.decrementAndGet() == 0) {
+                        restart();
+                    }
+                    return;
+                }
+                int total = progress.processed.addAndGet(count);
+                int expected = progress.expected;
+                if (expected >= 0 && total >= expected) {
+                    complete(progress);
+                }
+            }
+
+            private void record(WorkerStatistics statistics, long processTime, long sendTime) {
+                statistics.processTimes.record(processTime);
+                statistics.numOfMessagesProcessed++;
+                long endToEndTime = 0;
+                if (sendTime >= 0) {
+                    endToEndTime = (SpamMessages.currentTimeMicros() - sendTime) * 1000;
+                    statistics.endToEndTimes.record(endToEndTime);
+                }
+                synchronized (statistics) {
+                    statistics.intervalProcessTimes.record(processTime);
+                    if (sendTime >= 0) {
+                        statistics.intervalEndToEndTimes.record(endToEndTime);
+                    }
+                }
+            }
+        }
+
+        /**
+         * True when all messages of every SA registered have been processed.
+         * O(1) unless enough SA's are complete for them to be.
+         */
+        private boolean allSpammerAgentsDone() {
+            Collection<String> senders = spammerAgents.names();
+            if (senders.isEmpty() || completedSpammerAgents.get() < senders.size()) {
+                return false;
+            }
+            for (String sender : senders) {
+                int slot = register.find(sender);
+                if (slot < 0 || !received[slot].complete.get()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean done() {
+            // Check all expected agents have been completed
+            if (!allSpammerAgentsDone()) {
+                return false;
+            }
+            // Wait for the workers, so that their statistics are visible here
+            workers.shutdown();
+            try {
+                workers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            int numOfMessagesProcessed = 0;
+            LatencyHistogram processTimes = new LatencyHistogram();
+            LatencyHistogram endToEndTimes = new LatencyHistogram();
+            for (WorkerStatistics statistics : allWorkerStatistics) {
+                numOfMessagesProcessed += statistics.numOfMessagesProcessed;
+                processTimes.add(statistics.processTimes);
+                endToEndTimes.add(statistics.endToEndTimes);
+            }
+            if (progressReporter != null) {
+                progressReporter.stop();
+            }
+            // Send DONE message to EMA
+            // Convert nanoseconds to milliseconds by dividing by a million
+            double shortestMsgProcessTime = processTimes.getMin() / 1000000.0;
+            double longestMsgProcessTime = processTimes.getMax() / 1000000.0;
+            logger.log(logger.INFO, "Sending statistics, longestTime: " + longestMsgProcessTime + " shortestTime: " + shortestMsgProcessTime + " NumOfMessagesProcessed: " + numOfMessagesProcessed + " NumOfMessagesReordered: " + numOfMessagesReordered);
+            StatisticsRecord record = statistics(StatisticsRecord.Kind.DONE);
+            record.processTimes = processTimes;
+            record.endToEndTimes = endToEndTimes;
+            record.send(myAgent, statisticsReceiver);
+            return true;
+        }
+
+        /** Move the latencies recorded by the workers since the last call to the live metrics */
+        private void sampleWorkers(AgentMetrics metrics) {
+            for (WorkerStatistics statistics : allWorkerStatistics) {
+                synchronized (statistics) {
+                    metrics.addProcess(statistics.intervalProcessTimes);
+                    metrics.addEndToEnd(statistics.intervalEndToEndTimes);
+                    statistics.intervalProcessTimes.reset();
+                    statistics.intervalEndToEndTimes.reset();
+                }
+            }
+        }
+
+        /**
+         * Counts of the messages processed so far, without latencies: they are
+         * only merged from the workers once all messages are processed.
+         */
+        private StatisticsRecord statistics(StatisticsRecord.Kind kind) {
+            StatisticsRecord record = new StatisticsRecord(kind);
+            record.numOfMessagesReordered = numOfMessagesReordered;
+            for (int slot = 0; slot < register.size(); slot++) {
+                long processed = received[slot].processed.get();
+                record.senders.put(register.nameOf(slot), processed);
+                record.numOfMessagesProcessed += processed;
+            }
+            metrics.memory().addTo(record);
+            payloadCounter.addTo(record);
+            record.addPlacementCounters(here().getName(), spammerAgents);
+            return record;
+        }
+    }
+}
@@ -1,7 +1,6 @@
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import jade.core.AID;
 import jade.core.Agent;
@@ -9,6 +8,7 @@ import jade.core.behaviours.Behaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
@@ -18,13 +18,52 @@ import jade.util.Logger;
  * Message Consuming Agent (MCA). Receives and processes the messages sent by
  * SA's. When all messages have been processed, it sends message DONE to the
  * EMA. It knows how many messages from each SA should receive. 
- * It looks for a message from a specific agent first, and when there are none,
- * it precesses the remaining messages in FIFO order.
+ * It queues the messages by priority class of their sender, and processes
+ * them in the order given by a PriorityScheduler. By default, it looks for a
+ * message from a specific agent first, and when there are none, it precesses
+ * the remaining messages in FIFO order.
  * Run: 
- * -container MCAx:MessageConsumerAgentPriority(N,SA)
- * - N: number of messages to receive from each SA. 
- * - SA: name of the SA to read its messages first.
- * Note: Spammer Agentes (SA's) must be running befoure run MCA's.
+ * -container MCAx:MessageConsumerAgentPriority(N[,SA][,options])
+ * - N: number of messages to receive from each SA. SA's distributing their
+ *   messages among the MCA's tell how many they sent instead (see
+ *   ConsumerSelector), and get its queue depth if they ask.
+ * - SA: name of the SA to read its messages first. Same as class0=SA.
+ * Options (key=value):
+ * - class0, class1, ...: SA's in each priority class, class0 being the highest
+ *   one. Names separated by '|', where '*' matches anything. SA's in no class
+ *   go to the lowest priority, default class.
+ * - policy: strict (default) or wfq (weighted fair queuing).
+ * - weights: weight of each class for wfq, including the default one, e.g. 8:4:1.
+ * - maxQueue: maximum nº of messages queued in each class, including the
+ *   default one, 0 for no limit, e.g. 0:0:1000. Default none.
+ * - maxAge: maximum time each class keeps a message queued, in milliseconds,
+ *   including the default one, 0 for no limit, e.g. 0:200:50. Default none.
+ * - shed: what is done with the oldest messages of a class over its limits:
+ *   drop (default) or nack, dropping them and telling their SA. Shed
+ *   messages are given their credits back and count as received, so the MCA
+ *   still completes, but are neither logged nor measured, and are reported
+ *   in the counters (see StatisticsRecord.SHED).
+ * - log: how processed messages are logged: all, off, sample:N or async (see MessageLog).
+ * - window: credits of each SA for flow control (see CreditGranter). It must
+ *   match the window of the SA's. Default 0, no flow control.
+ * - progress: seconds between PROGRESS reports to the EMA. Default 0, none.
+ * - metrics: how live metrics are exposed: jmx, off or http:PORT (see AgentMetrics).
+ *   Default jmx. The queue depth is the number of messages in the priority queues.
+ * - metricsWindow: seconds covered by the live rates and latencies. Default 10.
+ * - aggregator: local name of the StatisticsAggregatorAgent of the container
+ *   to send the statistics to instead of the EMA. It is registered in the DF
+ *   with the service (see DirectoryCache.AGGREGATOR). Default none.
+ * - journal: directory to record every message consumed in, as
+ *   DIR/NAME.journal (see TrafficJournal). Default none.
+ *   Messages are recorded when processed.
+ * Statistics, per class included, are sent to the EMA, or to its aggregator,
+ * as a StatisticsRecord.
+ * Warmup messages, sent before the measured ones when the EMA runs a warmup
+ * phase, are queued and processed but neither measured nor counted in N (see
+ * WarmupTracker).
+ * SA's are followed in the DF (see DirectoryCache), so they can start before
+ * or after the MCA: it is done when all messages of every SA registered have
+ * been received.
  */
 public class MessageConsumingAgentPriority extends Agent {
 
@@ -34,26 +73,100 @@ public class MessageConsumingAgentPriority extends Agent {
 
     private int numberOfMessages;
 
-    private String prioritySpammerAgent;
+    private PriorityScheduler scheduler;
 
-    private int numberOfSpammerAgents;
+    /** SA's registered in the DF, followed while the MCA runs */
+    private DirectoryCache spammerAgents;
+
+    private MessageLog messageLog;
+
+    /** Window of the flow control, or 0 if it is disabled */
+    private int window;
+
+    private CreditGranter creditGranter;
+
+    /** Milliseconds between PROGRESS reports, or 0 if they are disabled */
+    private long progressPeriod;
+
+    private AgentMetrics metrics;
+
+    /** Agent the statistics are sent to, the EMA or an aggregator */
+    private AID statisticsReceiver;
+
+    /** Journal of the messages consumed, or null */
+    private TrafficJournal journal;
+
+    /** Whether the SA's are sent a NACK for the messages shed */
+    private boolean nackShed;
 
     @Override
     protected void setup() {
         // Get number of messages to receive from each SA
         Object[] args = getArguments();
-        if (args != null && args.length == 2) {
+        if (args != null && args.length >= 1) {
             numberOfMessages = Integer.parseInt((String) args[0]);
-            prioritySpammerAgent = (String) args[1];
-            logger.log(Logger.INFO, "Agent " + getLocalName() + " - Target: " + numberOfMessages + " msg" + "Priority SA: "+prioritySpammerAgent);
+            // The SA to read first can be given as a positional argument
+            boolean prioritySpammerAgent = args.length >= 2 && !((String) args[1]).contains("=");
+            try {
+                AgentArguments options = new AgentArguments(args, prioritySpammerAgent ? 2 : 1);
+                List<String> classes = new ArrayList<>();
+                if (prioritySpammerAgent) {
+                    if (options.has("class0")) {
+                        throw new IllegalArgumentException("Priority SA given twice, as argument and as class0");
+                    }
+                    classes.add((String) args[1]);
+                }
+                while (options.has("class" + classes.size())) {
+                    classes.add(options.get("class" + classes.size(), null));
+                }
+                String weights = options.get("weights", null);
+                scheduler = new PriorityScheduler(classes, weights != null ? PriorityScheduler.parseClassValues(weights) : null,
+                        options.get("policy", "strict"));
+                String maxQueue = options.get("maxQueue", null);
+                String maxAge = options.get("maxAge", null);
+                scheduler.limit(maxQueue != null ? PriorityScheduler.parseClassValues(maxQueue) : null,
+                        maxAge != null ? PriorityScheduler.parseClassValues(maxAge) : null);
+                String shed = options.get("shed", "drop");
+                if (!shed.equals("drop") && !shed.equals("nack")) {
+                    throw new IllegalArgumentException("Unknown shed policy: " + shed);
+                }
+                nackShed = shed.equals("nack");
+                messageLog = MessageLog.create(options.get("log", "all"), logger, getLocalName());
+                window = options.getInt("window", 0);
+                progressPeriod = (long) (options.getDouble("progress", 0.0) * 1000);
+                statisticsReceiver = StatisticsRecord.receiver(options.get("aggregator", null));
+                metrics = new AgentMetrics(this, options.getInt("metricsWindow", 10)) {
+                    private static final long serialVersionUID = 3349081754028118302L;
+
+                    @Override
+                    protected void sample() {
+                        setQueueDepth(scheduler.size());
+                    }
+                };
+                metrics.expose(options.get("metrics", "jmx"), logger);
+                journal = TrafficJournal.open(options.get("journal", null), getLocalName());
+                logger.log(Logger.INFO, "Agent " + getLocalName() + " - Target: " + numberOfMessages + " msg" + " Priority classes: " + classes
+                        + " Policy: " + options.get("policy", "strict"));
+            } catch (IllegalArgumentException | IOException e) {
+                logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Incorrect arguments", e);
+                doDelete();
+                return;
+            }
         } else {
             logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Incorrect number of arguments");
             doDelete();
+            return;
         }
         // Register the message consuming service in the yellow pages
         ServiceDescription sd = new ServiceDescription();
         sd.setType("MessageConsumingAgent");
         sd.setName("MessageConsumingAgentService");
+        // So that aggregators and the EMA know the MCA's of each container
+        sd.addProperties(new Property(DirectoryCache.CONTAINER, here().getName()));
+        // And which aggregator covers them, if any
+        if (!statisticsReceiver.equals(StatisticsRecord.receiver(null))) {
+            sd.addProperties(new Property(DirectoryCache.AGGREGATOR, statisticsReceiver.getName()));
+        }
         DFAgentDescription dfd = new DFAgentDescription();
         dfd.setName(getAID());
         dfd.addServices(sd);
@@ -63,19 +176,59 @@ public class MessageConsumingAgentPriority extends Agent {
             logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Cannot register with DF", e);
             doDelete();
         }
-        // Get number of Spamer Agents (SA)
-        sd = new ServiceDescription();
-        sd.setType("SpammerAgent");
-        dfd = new DFAgentDescription();
-        dfd.addServices(sd);
+        // Follow the Spamer Agents (SA), so that they can start before or after the MCA
+        spammerAgents = new DirectoryCache(this, "SpammerAgent");
         try {
-            DFAgentDescription[] result = DFService.search(this, dfd);
-            numberOfSpammerAgents = result.length;
+            spammerAgents.subscribe();
         } catch (FIPAException e) {
             logger.log(Logger.SEVERE, "Cannot get SA's", e);
         }
+        addBehaviour(spammerAgents);
+        if (window > 0) {
+            creditGranter = new CreditGranter(this, window, spammerAgents.size());
+        }
         // Add the behaviour consuming spam messages
-        addBehaviour(new MessageConsumingBehaviour());
+        final MessageConsumingBehaviour consumingBehaviour = new MessageConsumingBehaviour();
+        addBehaviour(consumingBehaviour);
+        spammerAgents.restartOnChange(consumingBehaviour);
+        addBehaviour(metrics);
+        if (progressPeriod > 0) {
+            consumingBehaviour.progressReporter = new ProgressReporter(this, progressPeriod, statisticsReceiver) {
+                private static final long serialVersionUID = -1946407185533096530L;
+
+                @Override
+                StatisticsRecord snapshot() {
+                    return consumingBehaviour.statistics(StatisticsRecord.Kind.PROGRESS);
+                }
+            };
+            addBehaviour(consumingBehaviour.progressReporter);
+        }
+    }
+
+    @Override
+    protected void takeDown() {
+        // Leave the yellow pages, so that agents started later do not count this one
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException e) {
+            logger.log(Logger.FINE, "Agent " + getLocalName() + " - Not registered with DF", e);
+        }
+        if (spammerAgents != null) {
+            spammerAgents.close();
+        }
+        if (messageLog != null) {
+            messageLog.close();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.log(Logger.WARNING, "Agent " + getLocalName() + " - Cannot close journal " + journal.file(), e);
+            }
+        }
     }
 
     /**
@@ -85,107 +238,224 @@ public class MessageConsumingAgentPriority extends Agent {
     private class MessageConsumingBehaviour extends Behaviour {
 
         private static final long serialVersionUID = -5860119910249641199L;
-        private static final String SEPERATOR = "_";
         /** SA -> nº of msg received by it */
-        private Map<String, Integer> received;
-        /** Messages to read */
-        private Queue<ACLMessage> toRead;
+        private final SenderRegister register;
+        private final MessageTemplate mt = SpamMessages.TEMPLATE;
         private int numOfMessagesProcessed = 0;
-        private double shortestMsgProcessTime = Double.MAX_VALUE;
-        private double longestMsgProcessTime = Double.MIN_VALUE;
+        /** Distribution of the time to process each message, in nanoseconds */
+        private final LatencyHistogram processTimes = new LatencyHistogram();
+        /** Distribution of the time from send to consumption of each message, in nanoseconds */
+        private final LatencyHistogram endToEndTimes = new LatencyHistogram();
+        /** Number of messages received with a lower sequence number than a previous one */
+        private int numOfMessagesReordered = 0;
+        private final SpamBatch.Reader batchReader = new SpamBatch.Reader();
+        /** Class -> nº of msg processed from it */
+        private final int[] classMessagesProcessed;
+        /** Class -> distribution of the time from send to consumption of its messages, in nanoseconds */
+        private final LatencyHistogram[] classEndToEndTimes;
+        private int numOfMessagesShed = 0;
+        /** Class -> nº of msg shed from it */
+        private final int[] classMessagesShed;
+        /** Sender of the PROGRESS reports, stopped when done, or null */
+        private ProgressReporter progressReporter;
+        /** Payload bytes received, and those shared with their SA */
+        private final SharedPayloads.Counter payloadCounter = new SharedPayloads.Counter();
+        private final LoadReporter loadReporter = new LoadReporter(MessageConsumingAgentPriority.this);
+        private final WarmupTracker warmupTracker = new WarmupTracker(MessageConsumingAgentPriority.this);
         MessageConsumingBehaviour() {
             super();
-            this.received = new HashMap<>(numberOfSpammerAgents);
-            this.toRead = new LinkedList<>();
+            this.register = new SenderRegister(spammerAgents.size(), numberOfMessages);
+            this.classMessagesProcessed = new int[scheduler.numberOfClasses()];
+            this.classEndToEndTimes = new LatencyHistogram[scheduler.numberOfClasses()];
+            this.classMessagesShed = new int[scheduler.numberOfClasses()];
+            for (int i = 0; i < classEndToEndTimes.length; i++) {
+                classEndToEndTimes[i] = new LatencyHistogram();
+            }
         }
 
         /**Updates statistics by incrementing msg count and finding shortest and longest time and so on**/
-        public void updateStatistics(double initialProcessTime){
-            double timeToProcessMsg = (double)System.nanoTime() - initialProcessTime;
-            if(timeToProcessMsg < shortestMsgProcessTime){
-                shortestMsgProcessTime = timeToProcessMsg;
-            }
-            if(timeToProcessMsg > longestMsgProcessTime){
-                longestMsgProcessTime = timeToProcessMsg;
+        public void updateStatistics(int sender, int priorityClass, ACLMessage msg, long initialProcessTime){
+            if (SpamBatch.isBatch(msg)) {
+                // Each payload of a batch is accounted as one message, sharing the process time
+                batchReader.reset(msg);
+                long processTime = (System.nanoTime() - initialProcessTime) / SpamBatch.payloadCount(msg);
+                long sendTime = SpamMessages.sendTimeOf(msg);
+                while (batchReader.next()) {
+                    long intendedTime = batchReader.intendedTime();
+                    updateStatistics(sender, priorityClass, batchReader.sequence(), intendedTime >= 0 ? intendedTime : sendTime, processTime);
+                }
+            } else {
+                updateStatistics(sender, priorityClass, SpamMessages.sequenceOf(msg), SpamMessages.startTimeOf(msg),
+                        System.nanoTime() - initialProcessTime);
             }
+        }
+
+        private void updateStatistics(int sender, int priorityClass, long sequence, long sendTime, long processTime){
+            processTimes.record(processTime);
+            metrics.recordProcess(processTime);
             numOfMessagesProcessed++;
+            classMessagesProcessed[priorityClass]++;
+            // End-to-end latency and ordering, using the stamp added by the SA
+            if (sendTime >= 0) {
+                long endToEndTime = (SpamMessages.currentTimeMicros() - sendTime) * 1000;
+                endToEndTimes.record(endToEndTime);
+                classEndToEndTimes[priorityClass].record(endToEndTime);
+                metrics.recordEndToEnd(endToEndTime);
+            }
+            if (sequence >= 0 && !register.checkOrder(sender, sequence)) {
+                numOfMessagesReordered++;
+            }
         }
         @Override
         public void action() {
-            // Receive spam messages
-            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
-                    MessageTemplate.MatchLanguage(SpammerAgent.LANGUAGE));
-            double timeToProcessMessageInitial = System.nanoTime();
+            // Move all spam messages in the mailbox to the queue of their class
+            long arrivalTime = System.nanoTime();
             ACLMessage msg = myAgent.receive(mt);
-            if (msg != null) {
-                // Check if it is from the priority SA
-                if(msg.getSender().getName().equals(prioritySpammerAgent)){
-                    logger.log(logger.INFO, "Received msg from priority spammer agent with name: "
-                            + msg.getSender().getName() + " and content: " + msg.getContent());
-                    // Process message
-                    processMessage(msg);
-                    updateStatistics(timeToProcessMessageInitial);
-                    timeToProcessMessageInitial = System.nanoTime();
-                } else {
-                    // Put the message in the queue
-                    toRead.add(msg);
+            while (msg != null) {
+                scheduler.add(msg, arrivalTime);
+                if (!SpamMessages.isWarmup(msg)) {
+                    metrics.received(SpamBatch.payloadCount(msg));
+                    payloadCounter.count(msg);
                 }
-
-            } else if(toRead.size() > 0) {
-                // Consume message from the FIFO queue
-                msg = toRead.poll();
-                processMessage(msg);
-                updateStatistics(timeToProcessMessageInitial);
-                timeToProcessMessageInitial = System.nanoTime();
+                msg = myAgent.receive(mt);
+            }
+            // Expect the nº of msg told by the SA's distributing their messages
+            ACLMessage end = myAgent.receive(SpamMessages.END_TEMPLATE);
+            while (end != null) {
+                register.expect(register.slotOf(end.getSender()), Integer.parseInt(end.getContent()));
+                end = myAgent.receive(SpamMessages.END_TEMPLATE);
+            }
+            warmupTracker.check(spammerAgents.names());
+            // Shed the oldest messages of the classes over their limits before choosing
+            long timeToProcessMessageInitial = System.nanoTime();
+            int shedClass = scheduler.shedClass(timeToProcessMessageInitial);
+            while (shedClass >= 0) {
+                shed(scheduler.poll(shedClass), shedClass);
+                shedClass = scheduler.shedClass(timeToProcessMessageInitial);
+            }
+            // Process the next message chosen by the scheduling policy
+            int priorityClass = scheduler.nextClass();
+            if (priorityClass >= 0) {
+                processMessage(scheduler.poll(priorityClass), priorityClass, timeToProcessMessageInitial);
             } else {
                 block();
             }
+        }
 
+        /**
+         * Process message. In our case, just log it and account it.
+         */
+        private void processMessage(ACLMessage msg, int priorityClass, long initialProcessTime){
+            messageLog.processed(msg);
+            if (SpamMessages.isWarmup(msg)) {
+                warmUp(msg);
+                return;
+            }
+            if (journal != null) {
+                journal.consumed(msg);
+            }
+            int sender = updateRegister(msg);
+            updateStatistics(sender, priorityClass, msg, initialProcessTime);
         }
 
         /**
-         * Process message. In our case, just log it.
+         * Shed message instead of processing it: it is only accounted as
+         * received, so that its SA completes and gets its credits back.
          */
-        private void processMessage(ACLMessage msg){
-            logger.log(Logger.INFO, "Agent " + getLocalName() + " - Message processed: " + msg.getContent());
+        private void shed(ACLMessage msg, int priorityClass) {
+            if (SpamMessages.isWarmup(msg)) {
+                warmUp(msg);
+                return;
+            }
             updateRegister(msg);
+            int count = SpamBatch.payloadCount(msg);
+            numOfMessagesShed += count;
+            classMessagesShed[priorityClass] += count;
+            if (nackShed) {
+                myAgent.send(SpamMessages.nack(msg, count));
+            }
         }
 
         /**
-         * Update register of received messages
+         * Account a warmup message, processed or shed, out of the register
+         * and of the statistics.
          */
-        private void updateRegister(ACLMessage msg) {
-            String sender = msg.getSender().getName();
-            if (received.containsKey(sender)) {
-                received.put(sender, received.get(sender) + 1);
-            } else {
-                received.put(sender, 1);
+        private void warmUp(ACLMessage msg) {
+            int count = SpamBatch.payloadCount(msg);
+            warmupTracker.processed(msg.getSender(), count);
+            int loadReportPeriod = SpamMessages.loadReportPeriodOf(msg);
+            if (creditGranter != null || loadReportPeriod > 0) {
+                int sender = register.slotOf(msg.getSender());
+                if (creditGranter != null) {
+                    creditGranter.consumed(sender, msg.getSender(), count);
+                }
+                if (loadReportPeriod > 0) {
+                    loadReporter.consumed(sender, msg.getSender(), count, loadReportPeriod, scheduler.size() + myAgent.getCurQueueSize());
+                }
+            }
+        }
+
+        /**
+         * Update register of received messages, returning the slot of the sender
+         */
+        private int updateRegister(ACLMessage msg) {
+            int sender = register.slotOf(msg.getSender());
+            int loadReportPeriod = SpamMessages.loadReportPeriodOf(msg);
+            if (loadReportPeriod >= 0) {
+                register.expectUntold(sender);
             }
+            register.add(sender, SpamBatch.payloadCount(msg));
+            // Give the credits back only once processed, so the class queues stay bounded
+            if (creditGranter != null) {
+                creditGranter.consumed(sender, msg.getSender(), SpamBatch.payloadCount(msg));
+            }
+            if (loadReportPeriod > 0) {
+                loadReporter.consumed(sender, msg.getSender(), SpamBatch.payloadCount(msg), loadReportPeriod,
+                        scheduler.size() + myAgent.getCurQueueSize());
+            }
+            return sender;
         }
 
         @Override
         public boolean done() {
-            // Check all expected agents are registered
-            if (received.size() != numberOfSpammerAgents) {
+            // Check all expected agents are registered and all their messages have been received
+            if (!register.isComplete(spammerAgents.names())) {
                 return false;
             }
-            // Check if all messages have been received
-            for (int i : received.values()) {
-                if (i != numberOfMessages) {
-                    return false;
-                }
+            if (progressReporter != null) {
+                progressReporter.stop();
             }
             // Send DONE message to EMA
-            ACLMessage doneMsg = new ACLMessage(ACLMessage.INFORM);
-            doneMsg.addReceiver(new AID("ExperimentMasterAgent", AID.ISLOCALNAME));
             // Convert nanoseconds to milliseconds by dividing by a million
-            shortestMsgProcessTime /= 1000000;
-            longestMsgProcessTime /= 1000000;
-            // Encode all statistics of message processing in done message
-            doneMsg.setContent(ExperimentMasterAgent.DONE + SEPERATOR + numOfMessagesProcessed + SEPERATOR + shortestMsgProcessTime + SEPERATOR + longestMsgProcessTime);
-            logger.log(logger.INFO, "Sending statistics, longestTime: " + longestMsgProcessTime + " shortestTime: " + shortestMsgProcessTime + " NumOfMessagesProcessed: " + numOfMessagesProcessed);
-            myAgent.send(doneMsg);
+            double shortestMsgProcessTime = processTimes.getMin() / 1000000.0;
+            double longestMsgProcessTime = processTimes.getMax() / 1000000.0;
+            logger.log(logger.INFO, "Sending statistics, longestTime: " + longestMsgProcessTime + " shortestTime: " + shortestMsgProcessTime + " NumOfMessagesProcessed: " + numOfMessagesProcessed + " NumOfMessagesReordered: " + numOfMessagesReordered + " NumOfMessagesShed: " + numOfMessagesShed);
+            statistics(StatisticsRecord.Kind.DONE).send(myAgent, statisticsReceiver);
             return true;
         }
+
+        /** Statistics of all messages processed so far, per priority class included */
+        private StatisticsRecord statistics(StatisticsRecord.Kind kind) {
+            StatisticsRecord record = new StatisticsRecord(kind);
+            record.numOfMessagesProcessed = numOfMessagesProcessed;
+            record.numOfMessagesReordered = numOfMessagesReordered;
+            record.processTimes = processTimes;
+            record.endToEndTimes = endToEndTimes;
+            for (int slot = 0; slot < register.size(); slot++) {
+                record.senders.put(register.nameOf(slot), (long) register.received(slot));
+            }
+            for (int i = 0; i < classMessagesProcessed.length; i++) {
+                record.classMessagesProcessed.put(scheduler.nameOf(i), (long) classMessagesProcessed[i]);
+                record.classEndToEndTimes.put(scheduler.nameOf(i), classEndToEndTimes[i]);
+                if (classMessagesShed[i] > 0) {
+                    record.counters.put(StatisticsRecord.SHED_CLASS + scheduler.nameOf(i), (long) classMessagesShed[i]);
+                }
+            }
+            record.counters.put(StatisticsRecord.SHED, (long) numOfMessagesShed);
+            metrics.memory().addTo(record);
+            payloadCounter.addTo(record);
+            record.addPlacementCounters(here().getName(), spammerAgents);
+            return record;
+        }
     }
 }
\ No newline at end of file
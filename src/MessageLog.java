@@ -0,0 +1,190 @@
+import jade.lang.acl.ACLMessage;
+import jade.util.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of the spam messages processed by a MCA. Logging every message with a
+ * concatenated string and synchronous I/O is the biggest cost of a MCA and
+ * distorts the latency measurements, so the mode is configurable:
+ * - all: log every message in the agent thread (default).
+ * - off: do not log messages.
+ * - sample:N: log one message out of N.
+ * - async: hand the message content to a background thread through a
+ *   bounded ring buffer. Messages are dropped, and counted, when it is full.
+ * No string is built unless the message is actually logged at INFO level.
+ * Byte payloads are logged as their size and first PREVIEW_BYTES bytes, and
+ * never decoded as a whole: the async mode only keeps a reference to the
+ * array, which is shared and never modified (see SharedPayloads).
+ * The log must only be used from one thread, the agent thread.
+ */
+abstract class MessageLog {
+
+    private static final int ASYNC_CAPACITY = 8192;
+    private static final int PREVIEW_BYTES = 32;
+
+    protected final Logger logger;
+    protected final String prefix;
+
+    private MessageLog(Logger logger, String agentName) {
+        this.logger = logger;
+        this.prefix = "Agent " + agentName + " - ";
+    }
+
+    /**
+     * Create the log for the given mode.
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    static MessageLog create(String mode, Logger logger, String agentName) {
+        if (mode.equals("all")) {
+            return new SynchronousLog(logger, agentName, 1);
+        } else if (mode.equals("off")) {
+            return new SynchronousLog(logger, agentName, 0);
+        } else if (mode.startsWith("sample:")) {
+            int rate = Integer.parseInt(mode.substring("sample:".length()));
+            if (rate < 1) {
+                throw new IllegalArgumentException("Log sample rate must be at least 1: " + mode);
+            }
+            return new SynchronousLog(logger, agentName, rate);
+        } else if (mode.equals("async")) {
+            return new AsynchronousLog(logger, agentName, ASYNC_CAPACITY);
+        }
+        throw new IllegalArgumentException("Unknown log mode: " + mode);
+    }
+
+    /** Log that the message has been processed */
+    void processed(ACLMessage msg) {
+        log("Message processed: ", msg);
+    }
+
+    /**
+     * Log the constant text followed by the content of the message.
+     */
+    abstract void log(String text, ACLMessage msg);
+
+    /** Content of the message held in the log until it is written: its byte payload or its text */
+    private static Object contentOf(ACLMessage msg) {
+        byte[] bytes = msg.getByteSequenceContent();
+        return bytes != null ? bytes : msg.getContent();
+    }
+
+    /** Text of the content: the size and a preview of a byte payload */
+    private static String describe(Object content) {
+        if (!(content instanceof byte[])) {
+            return String.valueOf(content);
+        }
+        byte[] bytes = (byte[]) content;
+        int length = Math.min(bytes.length, PREVIEW_BYTES);
+        return "[" + bytes.length + " bytes] " + new String(bytes, 0, length, StandardCharsets.ISO_8859_1)
+                + (length < bytes.length ? "..." : "");
+    }
+
+    /** Flush and release the log. It must be called when the agent is taken down */
+    void close() {
+    }
+
+    /**
+     * Log in the calling thread one message out of 'rate', or none if rate is 0.
+     */
+    private static final class SynchronousLog extends MessageLog {
+
+        private final int rate;
+        private int count = 0;
+
+        SynchronousLog(Logger logger, String agentName, int rate) {
+            super(logger, agentName);
+            this.rate = rate;
+        }
+
+        @Override
+        void log(String text, ACLMessage msg) {
+            if (rate == 0 || ++count < rate) {
+                return;
+            }
+            count = 0;
+            if (logger.isLoggable(Logger.INFO)) {
+                logger.log(Logger.INFO, prefix + text + describe(contentOf(msg)));
+            }
+        }
+    }
+
+    /**
+     * Single producer, single consumer ring buffer drained by a daemon thread.
+     * The agent thread only stores two references per message; decoding,
+     * concatenation and I/O happen in the background thread.
+     */
+    private static final class AsynchronousLog extends MessageLog implements Runnable {
+
+        private final int mask;
+        private final String[] texts;
+        private final Object[] contents;
+        /** Next slot to be written, only advanced by the agent thread */
+        private final AtomicLong tail = new AtomicLong();
+        /** Next slot to be read, only advanced by the background thread */
+        private final AtomicLong head = new AtomicLong();
+        private long dropped = 0;
+        private volatile boolean running = true;
+        private final Thread writer;
+
+        AsynchronousLog(Logger logger, String agentName, int capacity) {
+            super(logger, agentName);
+            this.mask = capacity - 1;
+            this.texts = new String[capacity];
+            this.contents = new Object[capacity];
+            this.writer = new Thread(this, agentName + "-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        void log(String text, ACLMessage msg) {
+            if (!logger.isLoggable(Logger.INFO)) {
+                return;
+            }
+            long t = tail.get();
+            if (t - head.get() == texts.length) {
+                dropped++;
+                return;
+            }
+            int slot = (int) (t & mask);
+            texts[slot] = text;
+            contents[slot] = contentOf(msg);
+            // Publish the slot to the writer thread
+            tail.lazySet(t + 1);
+        }
+
+        @Override
+        public void run() {
+            while (running || head.get() < tail.get()) {
+                long h = head.get();
+                if (h == tail.get()) {
+                    LockSupport.parkNanos(1000000);
+                    continue;
+                }
+                int slot = (int) (h & mask);
+                String text = texts[slot];
+                Object content = contents[slot];
+                texts[slot] = null;
+                contents[slot] = null;
+                // Free the slot before the I/O
+                head.lazySet(h + 1);
+                logger.log(Logger.INFO, prefix + text + describe(content));
+            }
+        }
+
+        @Override
+        void close() {
+            running = false;
+            try {
+                writer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (dropped > 0) {
+                logger.log(Logger.WARNING, prefix + dropped + " messages not logged, the log buffer was full");
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import jade.lang.acl.ACLMessage;
+
+import java.util.Arrays;
+
+/**
+ * FIFO queue of messages backed by a circular array, remembering when each
+ * message was queued. Unlike a LinkedList it does not allocate a node per
+ * message; the arrays only grow, doubling, when the queue is full.
+ * It is not thread safe.
+ */
+final class MessageRing {
+
+    private ACLMessage[] messages;
+    /** System.nanoTime() at which each message was queued */
+    private long[] arrivalTimes;
+    private int head = 0;
+    private int size = 0;
+
+    MessageRing(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1;
+        messages = new ACLMessage[capacity];
+        arrivalTimes = new long[capacity];
+    }
+
+    void add(ACLMessage msg, long arrivalTime) {
+        if (size == messages.length) {
+            grow();
+        }
+        int tail = (head + size) & (messages.length - 1);
+        messages[tail] = msg;
+        arrivalTimes[tail] = arrivalTime;
+        size++;
+    }
+
+    /** Remove and return the oldest message, or null if the queue is empty */
+    ACLMessage poll() {
+        if (size == 0) {
+            return null;
+        }
+        ACLMessage msg = messages[head];
+        messages[head] = null;
+        head = (head + 1) & (messages.length - 1);
+        size--;
+        return msg;
+    }
+
+    /** Time at which the oldest message was queued. The queue must not be empty */
+    long peekArrivalTime() {
+        return arrivalTimes[head];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void grow() {
+        int capacity = messages.length;
+        // Unroll the ring so the oldest message is at index 0
+        ACLMessage[] newMessages = Arrays.copyOf(messages, capacity * 2);
+        long[] newArrivalTimes = Arrays.copyOf(arrivalTimes, capacity * 2);
+        if (head != 0) {
+            System.arraycopy(messages, head, newMessages, 0, capacity - head);
+            System.arraycopy(messages, 0, newMessages, capacity - head, head);
+            System.arraycopy(arrivalTimes, head, newArrivalTimes, 0, capacity - head);
+            System.arraycopy(arrivalTimes, 0, newArrivalTimes, capacity - head, head);
+        }
+        messages = newMessages;
+        arrivalTimes = newArrivalTimes;
+        head = 0;
+    }
+}
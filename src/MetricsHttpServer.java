@@ -0,0 +1,103 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Tiny HTTP endpoint serving the metrics of all the agents of the JVM, read
+ * from their MBeans (see AgentMetrics), for watching a run without a JMX
+ * console: curl http://localhost:PORT/metrics
+ * The response is a JSON object: agent name -> {attribute: value}.
+ * It only listens on the loopback interface. One server is started per port,
+ * shared by the agents of all the containers of the JVM, and stopped when the
+ * last of them is taken down.
+ */
+final class MetricsHttpServer {
+
+    /** Port -> server and the number of agents using it */
+    private static final Map<Integer, MetricsHttpServer> servers = new HashMap<>();
+
+    private final HttpServer server;
+    private int users = 0;
+
+    private MetricsHttpServer(HttpServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Start serving on the port, unless it is already served in this JVM.
+     * @throws IOException if the port is not available
+     */
+    static synchronized void start(int port) throws IOException {
+        MetricsHttpServer metricsServer = servers.get(port);
+        if (metricsServer == null) {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", new MetricsHandler());
+            server.start();
+            metricsServer = new MetricsHttpServer(server);
+            servers.put(port, metricsServer);
+        }
+        metricsServer.users++;
+    }
+
+    /** Release the port, stopping the server when no agent uses it */
+    static synchronized void stop(int port) {
+        MetricsHttpServer metricsServer = servers.get(port);
+        if (metricsServer != null && --metricsServer.users == 0) {
+            servers.remove(port);
+            metricsServer.server.stop(0);
+        }
+    }
+
+    private static final class MetricsHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] response = toJson().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response);
+            }
+        }
+
+        private String toJson() {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            StringBuilder json = new StringBuilder("{");
+            try {
+                for (ObjectName name : new TreeSet<>(mbeans.queryNames(new ObjectName(AgentMetrics.DOMAIN + ":*"), null))) {
+                    StringBuilder agent = new StringBuilder();
+                    try {
+                        for (MBeanAttributeInfo attribute : mbeans.getMBeanInfo(name).getAttributes()) {
+                            agent.append(agent.length() == 0 ? "" : ", ").append('"').append(attribute.getName()).append("\": ")
+                                    .append(mbeans.getAttribute(name, attribute.getName()));
+                        }
+                    } catch (JMException e) {
+                        // The agent was taken down meanwhile
+                        continue;
+                    }
+                    json.append(json.length() == 1 ? "\n" : ",\n").append("  \"")
+                            .append(ObjectName.unquote(name.getKeyProperty("name")).replace("\\", "\\\\").replace("\"", "\\\""))
+                            .append("\": {").append(agent).append('}');
+                }
+            } catch (JMException e) {
+                // Not thrown for a constant pattern
+                throw new IllegalStateException(e);
+            }
+            return json.append("\n}\n").toString();
+        }
+    }
+}
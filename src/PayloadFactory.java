@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+
+/**
+ * Payloads of the spam messages, generated once when the SA is set up so that
+ * their cost stays out of the measured time. There are 'variants' distinct
+ * payloads, message i carrying variant i % variants; they are shared by all
+ * the messages and never modified after being generated, so they are sent as
+ * they are: receivers in the same container get the same array (see
+ * SharedPayloads). Modes:
+ * - random: random lowercase letters.
+ * - fixed: the letters of the alphabet, repeated. Always a single variant.
+ * - file:PATH: slices of the file, starting at random offsets and wrapping
+ *   around its end.
+ */
+final class PayloadFactory {
+
+    private final byte[][] payloads;
+
+    private PayloadFactory(byte[][] payloads) {
+        this.payloads = payloads;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the mode is unknown
+     * @throws IOException if the corpus file cannot be read
+     */
+    static PayloadFactory create(String mode, int size, int variants, long seed) throws IOException {
+        if (variants < 1) {
+            throw new IllegalArgumentException("There must be at least 1 payload variant");
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        byte[][] payloads;
+        if (mode.equals("fixed")) {
+            byte[] payload = new byte[size];
+            for (int i = 0; i < size; i++) {
+                payload[i] = (byte) ('a' + i % 26);
+            }
+            payloads = new byte[][]{payload};
+        } else if (mode.equals("random")) {
+            payloads = new byte[variants][];
+            for (int v = 0; v < variants; v++) {
+                SplittableRandom variantRandom = random.split();
+                payloads[v] = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    payloads[v][i] = (byte) ('a' + variantRandom.nextInt(26));
+                }
+            }
+        } else if (mode.startsWith("file:")) {
+            byte[] corpus = Files.readAllBytes(Paths.get(mode.substring("file:".length())));
+            if (corpus.length == 0) {
+                throw new IllegalArgumentException("Empty payload corpus: " + mode);
+            }
+            payloads = new byte[variants][];
+            for (int v = 0; v < variants; v++) {
+                payloads[v] = slice(corpus, random.nextInt(corpus.length), size);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown payload mode: " + mode);
+        }
+        return new PayloadFactory(payloads);
+    }
+
+    private static byte[] slice(byte[] corpus, int offset, int size) {
+        byte[] payload = new byte[size];
+        int copied = 0;
+        while (copied < size) {
+            int length = Math.min(size - copied, corpus.length - offset);
+            System.arraycopy(corpus, offset, payload, copied, length);
+            copied += length;
+            offset = 0;
+        }
+        return payload;
+    }
+
+    /** Payload of the message with the given sequence number. It must not be modified */
+    byte[] get(long sequence) {
+        return payloads[(int) (sequence % payloads.length)];
+    }
+
+    int variants() {
+        return payloads.length;
+    }
+
+    /** Register the payloads in SharedPayloads, until release() */
+    void share() {
+        for (byte[] payload : payloads) {
+            SharedPayloads.register(payload);
+        }
+    }
+
+    void release() {
+        for (byte[] payload : payloads) {
+            SharedPayloads.unregister(payload);
+        }
+    }
+}
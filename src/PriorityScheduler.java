@@ -0,0 +1,252 @@
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Scheduler of the messages queued by MessageConsumingAgentPriority. Each
+ * message is put in the queue of its priority class, chosen by the name of
+ * its sender, and the next message to process is chosen among the queues by
+ * the policy:
+ * - strict: always the oldest message of the highest priority non empty class.
+ * - wfq: weighted fair queuing. Every class gets a share of the processed
+ *   messages proportional to its weight, interleaved with smooth weighted
+ *   round-robin (messages are assumed to have the same cost).
+ * Class 0 has the highest priority. Senders matching no class go to the
+ * default class, which is always the last one.
+ * Each class can be limited in nº of messages queued and in time a message
+ * stays queued (see limit()). The oldest messages of a class over its limits
+ * are then shed: taken out without being processed, so that under overload
+ * the classes that are not limited keep a flat latency.
+ * It is not thread safe.
+ */
+final class PriorityScheduler {
+
+    static final String DEFAULT_CLASS = "default";
+    private static final int INITIAL_QUEUE_CAPACITY = 64;
+
+    private final boolean weightedFair;
+    private final String[] names;
+    private final Pattern[] patterns;
+    private final int[] weights;
+    private final MessageRing[] queues;
+    /** Current credit of each class for smooth weighted round-robin */
+    private final int[] credits;
+    /** Sender name -> class, so patterns are matched once per sender */
+    private final Map<String, Integer> classOfSender = new HashMap<>();
+    private int size = 0;
+    /** Maximum nº of messages queued in each class, 0 for no limit */
+    private final int[] maxSizes;
+    /** Maximum time each class keeps a message queued, in nanoseconds, 0 for no limit */
+    private final long[] maxAges;
+    /** Whether any class is limited */
+    private boolean limited = false;
+
+    /**
+     * @param senderPatterns for each class but the default one, the sender
+     *                       names that belong to it: glob patterns ('*' matches
+     *                       anything) separated by '|', matched against both
+     *                       the local and the full name of the sender
+     * @param weights        weight of each class, including the default one, or
+     *                       null to give all classes the same weight
+     * @param policy         "strict" or "wfq"
+     */
+    PriorityScheduler(List<String> senderPatterns, int[] weights, String policy) {
+        if (policy.equals("strict")) {
+            weightedFair = false;
+        } else if (policy.equals("wfq")) {
+            weightedFair = true;
+        } else {
+            throw new IllegalArgumentException("Unknown scheduling policy: " + policy);
+        }
+        int numberOfClasses = senderPatterns.size() + 1;
+        if (weights != null && weights.length != numberOfClasses) {
+            throw new IllegalArgumentException("Expected " + numberOfClasses + " weights but got " + weights.length);
+        }
+        this.names = new String[numberOfClasses];
+        this.patterns = new Pattern[numberOfClasses - 1];
+        this.weights = new int[numberOfClasses];
+        this.queues = new MessageRing[numberOfClasses];
+        this.credits = new int[numberOfClasses];
+        this.maxSizes = new int[numberOfClasses];
+        this.maxAges = new long[numberOfClasses];
+        for (int i = 0; i < numberOfClasses; i++) {
+            names[i] = i < patterns.length ? Integer.toString(i) : DEFAULT_CLASS;
+            if (i < patterns.length) {
+                patterns[i] = compile(senderPatterns.get(i));
+            }
+            this.weights[i] = weights != null ? weights[i] : 1;
+            if (this.weights[i] < 1) {
+                throw new IllegalArgumentException("Weights must be at least 1");
+            }
+            queues[i] = new MessageRing(INITIAL_QUEUE_CAPACITY);
+        }
+    }
+
+    /**
+     * Parse a value for each class separated by ':', e.g. the weights "8:4:1".
+     */
+    static int[] parseClassValues(String classValues) {
+        String[] values = classValues.split(":");
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i]);
+        }
+        return result;
+    }
+
+    private static Pattern compile(String glob) {
+        List<String> alternatives = new ArrayList<>();
+        for (String alternative : glob.split("\\|")) {
+            StringBuilder regex = new StringBuilder();
+            String[] parts = alternative.split("\\*", -1);
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) {
+                    regex.append(".*");
+                }
+                regex.append(Pattern.quote(parts[i]));
+            }
+            alternatives.add(regex.toString());
+        }
+        return Pattern.compile(String.join("|", alternatives));
+    }
+
+    /**
+     * Limit the queue of each class, including the default one.
+     * @param maxSizes      maximum nº of messages queued in each class, 0 for
+     *                      no limit, or null for none
+     * @param maxAgesMillis maximum time each class keeps a message queued, in
+     *                      milliseconds, 0 for no limit, or null for none
+     */
+    void limit(int[] maxSizes, int[] maxAgesMillis) {
+        for (int[] limits : new int[][]{maxSizes, maxAgesMillis}) {
+            if (limits != null && limits.length != names.length) {
+                throw new IllegalArgumentException("Expected " + names.length + " limits but got " + limits.length);
+            }
+        }
+        for (int i = 0; i < names.length; i++) {
+            this.maxSizes[i] = maxSizes != null ? maxSizes[i] : 0;
+            this.maxAges[i] = maxAgesMillis != null ? maxAgesMillis[i] * 1000000L : 0;
+            if (this.maxSizes[i] < 0 || this.maxAges[i] < 0) {
+                throw new IllegalArgumentException("Limits must be at least 0");
+            }
+            limited |= this.maxSizes[i] > 0 || this.maxAges[i] > 0;
+        }
+    }
+
+    int numberOfClasses() {
+        return names.length;
+    }
+
+    String nameOf(int priorityClass) {
+        return names[priorityClass];
+    }
+
+    int classOf(AID sender) {
+        Integer priorityClass = classOfSender.get(sender.getName());
+        if (priorityClass == null) {
+            priorityClass = patterns.length;
+            for (int i = 0; i < patterns.length; i++) {
+                if (patterns[i].matcher(sender.getLocalName()).matches()
+                        || patterns[i].matcher(sender.getName()).matches()) {
+                    priorityClass = i;
+                    break;
+                }
+            }
+            classOfSender.put(sender.getName(), priorityClass);
+        }
+        return priorityClass;
+    }
+
+    /**
+     * Queue the message in its class.
+     * @return the class of the message
+     */
+    int add(ACLMessage msg, long arrivalTime) {
+        int priorityClass = classOf(msg.getSender());
+        queues[priorityClass].add(msg, arrivalTime);
+        size++;
+        return priorityClass;
+    }
+
+    /**
+     * Class of the next message to process according to the policy, or -1 if
+     * all queues are empty. The message must then be taken with poll().
+     */
+    int nextClass() {
+        if (size == 0) {
+            return -1;
+        }
+        if (!weightedFair) {
+            for (int i = 0; i < queues.length; i++) {
+                if (!queues[i].isEmpty()) {
+                    return i;
+                }
+            }
+        }
+        // Smooth weighted round-robin among the non empty classes
+        int chosen = -1;
+        int totalWeight = 0;
+        for (int i = 0; i < queues.length; i++) {
+            if (queues[i].isEmpty()) {
+                // Idle classes do not accumulate credit
+                credits[i] = 0;
+                continue;
+            }
+            credits[i] += weights[i];
+            totalWeight += weights[i];
+            if (chosen < 0 || credits[i] > credits[chosen]) {
+                chosen = i;
+            }
+        }
+        credits[chosen] -= totalWeight;
+        return chosen;
+    }
+
+    /**
+     * Class whose oldest message must be shed, because the class holds more
+     * messages than its limit or the message has been queued longer than its
+     * limit at 'now' (System.nanoTime()), or -1 if there is none. Classes are
+     * checked from the lowest priority one. The message must then be taken
+     * with poll().
+     */
+    int shedClass(long now) {
+        if (!limited || size == 0) {
+            return -1;
+        }
+        for (int i = queues.length - 1; i >= 0; i--) {
+            MessageRing queue = queues[i];
+            if (queue.isEmpty()) {
+                continue;
+            }
+            if ((maxSizes[i] > 0 && queue.size() > maxSizes[i])
+                    || (maxAges[i] > 0 && now - queue.peekArrivalTime() > maxAges[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Remove and return the oldest message of the class */
+    ACLMessage poll(int priorityClass) {
+        ACLMessage msg = queues[priorityClass].poll();
+        if (msg != null) {
+            size--;
+        }
+        return msg;
+    }
+
+    /** Number of messages queued in the class */
+    int size(int priorityClass) {
+        return queues[priorityClass].size();
+    }
+
+    /** Number of messages queued in all classes */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,28 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.TickerBehaviour;
+
+/**
+ * Sends a PROGRESS StatisticsRecord to the ExperimentMasterAgent, or to the
+ * StatisticsAggregatorAgent of the container, every period, so that long runs
+ * can be followed, until it is stopped.
+ */
+abstract class ProgressReporter extends TickerBehaviour {
+
+    private static final long serialVersionUID = -4727718153290738305L;
+
+    private final AID receiver;
+
+    ProgressReporter(Agent agent, long periodMilliseconds, AID receiver) {
+        super(agent, periodMilliseconds);
+        this.receiver = receiver;
+    }
+
+    @Override
+    protected void onTick() {
+        snapshot().send(myAgent, receiver);
+    }
+
+    /** Statistics of the agent so far, of kind PROGRESS */
+    abstract StatisticsRecord snapshot();
+}
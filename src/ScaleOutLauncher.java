@@ -0,0 +1,242 @@
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+import jade.wrapper.StaleProxyException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Scale-out harness: boots a main container and N peripheral containers on
+ * this machine, spreads the SA's and MCA's over the peripheral containers
+ * following a placement policy and starts the EMA in the main container. The
+ * EMA waits for all of them in the DF, starts the experiment and reports the
+ * throughput per container and of the messages sent within and across
+ * containers, so comparing placements shows when the transport between
+ * containers (IMTP) becomes the bottleneck.
+ * Run:
+ * java -cp target/spamit-1.0-SNAPSHOT.jar:jade.jar ScaleOutLauncher [options]
+ * Options (key=value):
+ * - containers: nº of peripheral containers. Default nº of processors.
+ * - jvm: in-process (all containers in this JVM) or fork (one JVM per
+ *   peripheral container, with the class path of this one). Default in-process.
+ * - placement: how agents are assigned to containers (see Placement).
+ *   Default round-robin.
+ * - spammers, consumers: nº of SA's and MCA's. Default 1.
+ * - messages: nº of msg each SA sends to each MCA. Default 1000.
+ * - size: size of each message. Default 1.
+ * - consumer: class of the MCA's. Default MessageConsumingAgent.
+ * - spammerOptions, consumerOptions, masterOptions: options added to every SA,
+ *   MCA and to the EMA, separated by spaces, e.g. "batch=10 window=100".
+ * - aggregators: whether a StatisticsAggregatorAgent is started in each
+ *   peripheral container, merging the statistics of its MCA's for the EMA.
+ *   Default true.
+ * - aggregatorOptions: options added to every aggregator.
+ * - port: port of the main container. Default 1099.
+ * The launcher returns once the agents are started; the platform runs until
+ * it is shut down, forked containers are destroyed when this JVM exits.
+ */
+public final class ScaleOutLauncher {
+
+    /** How the agents of each kind are assigned to the peripheral containers */
+    enum Placement {
+        /** Agent i in container i % N, every container runs SA's and MCA's */
+        ROUND_ROBIN,
+        /** Agents in contiguous blocks, so neighbours mostly share a container */
+        PACK,
+        /** SA's in the first half of the containers and MCA's in the second, so every message crosses containers */
+        SPLIT;
+
+        static Placement parse(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+
+        /** Container of agent 'index' of the 'count' agents of a kind */
+        int containerOf(int index, int count, boolean spammer, int containers) {
+            switch (this) {
+                case PACK:
+                    return (int) ((long) index * containers / count);
+                case SPLIT:
+                    if (containers == 1) {
+                        return 0;
+                    }
+                    int half = containers / 2;
+                    return spammer ? index % half : half + index % (containers - half);
+                default:
+                    return index % containers;
+            }
+        }
+    }
+
+    private final int containers;
+    private final boolean fork;
+    private final Placement placement;
+    private final int spammers;
+    private final int consumers;
+    private final int messages;
+    private final int size;
+    private final String consumer;
+    private final String spammerOptions;
+    private final String consumerOptions;
+    private final String masterOptions;
+    private final boolean aggregators;
+    private final String aggregatorOptions;
+    private final int port;
+    /** Container -> agents to start in it, as NAME:CLASS(ARGS) */
+    private final List<List<String>> agents = new ArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+
+    private ScaleOutLauncher(AgentArguments options) {
+        containers = options.getInt("containers", java.lang.Runtime.getRuntime().availableProcessors());
+        String jvm = options.get("jvm", "in-process");
+        if (!jvm.equals("in-process") && !jvm.equals("fork")) {
+            throw new IllegalArgumentException("Unknown jvm mode: " + jvm);
+        }
+        fork = jvm.equals("fork");
+        placement = Placement.parse(options.get("placement", "round-robin"));
+        spammers = options.getInt("spammers", 1);
+        consumers = options.getInt("consumers", 1);
+        messages = options.getInt("messages", 1000);
+        size = options.getInt("size", 1);
+        consumer = options.get("consumer", "MessageConsumingAgent");
+        spammerOptions = options.get("spammerOptions", "");
+        consumerOptions = options.get("consumerOptions", "");
+        masterOptions = options.get("masterOptions", "");
+        aggregators = options.getBoolean("aggregators", true);
+        aggregatorOptions = options.get("aggregatorOptions", "");
+        port = options.getInt("port", 1099);
+        if (containers < 1 || spammers < 1 || consumers < 1) {
+            throw new IllegalArgumentException("At least one container, SA and MCA are needed");
+        }
+    }
+
+    public static void main(String[] args) throws IOException, StaleProxyException {
+        ScaleOutLauncher launcher;
+        try {
+            launcher = new ScaleOutLauncher(new AgentArguments(args, 0));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Incorrect arguments: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        launcher.launch();
+    }
+
+    private void launch() throws IOException, StaleProxyException {
+        for (int i = 0; i < containers; i++) {
+            agents.add(new ArrayList<String>());
+            if (aggregators) {
+                agents.get(i).add(agent(aggregatorName(i), "StatisticsAggregatorAgent", aggregatorOptions));
+            }
+        }
+        // SA's first in each container, as in the sweeps
+        for (int i = 0; i < spammers; i++) {
+            agents.get(placement.containerOf(i, spammers, true, containers))
+                    .add(agent("SpammerAgent" + i, "SpammerAgent", messages + " " + size + " " + spammerOptions));
+        }
+        for (int i = 0; i < consumers; i++) {
+            int container = placement.containerOf(i, consumers, false, containers);
+            agents.get(container).add(agent("MessageConsumingAgent" + i, consumer, messages + " " + consumerOptions
+                    + (aggregators ? " aggregator=" + aggregatorName(container) : "")));
+        }
+        for (int i = 0; i < containers; i++) {
+            System.out.println("Container-" + i + ": " + agents.get(i));
+        }
+
+        Profile profile = new ProfileImpl(null, port, null, true);
+        profile.setParameter(Profile.GUI, "false");
+        AgentContainer mainContainer = Runtime.instance().createMainContainer(profile);
+        if (fork) {
+            Thread destroy = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (Process process : processes) {
+                        process.destroy();
+                    }
+                }
+            });
+            java.lang.Runtime.getRuntime().addShutdownHook(destroy);
+        }
+        for (int i = 0; i < containers; i++) {
+            if (fork) {
+                forkContainer("Container-" + i, agents.get(i));
+            } else {
+                startContainer("Container-" + i, agents.get(i));
+            }
+        }
+        // The EMA waits for all the agents to register, wherever they run
+        List<String> masterArgs = new ArrayList<>();
+        masterArgs.add("spammers=" + spammers);
+        masterArgs.add("consumers=" + consumers);
+        addOptions(masterArgs, masterOptions);
+        mainContainer.createNewAgent("ExperimentMasterAgent", "ExperimentMasterAgent", masterArgs.toArray()).start();
+    }
+
+    private void startContainer(String name, List<String> specifications) throws StaleProxyException {
+        ProfileImpl profile = new ProfileImpl(false);
+        profile.setParameter(Profile.MAIN_HOST, "localhost");
+        profile.setParameter(Profile.MAIN_PORT, Integer.toString(port));
+        profile.setParameter(Profile.CONTAINER_NAME, name);
+        AgentContainer container = Runtime.instance().createAgentContainer(profile);
+        for (String specification : specifications) {
+            int nameEnd = specification.indexOf(':');
+            int classEnd = specification.indexOf('(');
+            List<String> args = new ArrayList<>();
+            addOptions(args, specification.substring(classEnd + 1, specification.length() - 1).replace(',', ' '));
+            container.createNewAgent(specification.substring(0, nameEnd), specification.substring(nameEnd + 1, classEnd),
+                    args.toArray()).start();
+        }
+    }
+
+    /** Start the container in a new JVM, booting its agents with -agents */
+    private void forkContainer(String name, List<String> specifications) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("jade.Boot");
+        command.add("-container");
+        command.add("-host");
+        command.add("localhost");
+        command.add("-port");
+        command.add(Integer.toString(port));
+        command.add("-container-name");
+        command.add(name);
+        if (!specifications.isEmpty()) {
+            StringBuilder agentList = new StringBuilder();
+            for (String specification : specifications) {
+                agentList.append(agentList.length() == 0 ? "" : ";").append(specification);
+            }
+            command.add("-agents");
+            command.add(agentList.toString());
+        }
+        processes.add(new ProcessBuilder(command).inheritIO().start());
+    }
+
+    private static String aggregatorName(int container) {
+        return "StatisticsAggregator-" + container;
+    }
+
+    /** Agent specification as in -agents: NAME:CLASS(ARG,...), from arguments separated by spaces */
+    private static String agent(String name, String className, String args) {
+        List<String> list = new ArrayList<>();
+        addOptions(list, args);
+        StringBuilder specification = new StringBuilder(name).append(':').append(className).append('(');
+        for (int i = 0; i < list.size(); i++) {
+            specification.append(i == 0 ? "" : ",").append(list.get(i));
+        }
+        return specification.append(')').toString();
+    }
+
+    private static void addOptions(List<String> args, String options) {
+        for (String option : options.split("\\s+")) {
+            if (!option.isEmpty()) {
+                args.add(option);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import jade.core.AID;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Register of the messages received from each SA by a MCA. Each SA is
+ * resolved once to a dense slot, and its counters are kept in primitive
+ * arrays indexed by that slot, so accounting a message neither boxes nor
+ * allocates. The number of SA's whose messages have all been received is
+ * maintained incrementally, so checking completion is O(1).
+ * Each SA is expected to send messagesPerSender messages, unless it
+ * distributes its messages among the MCA's: then the MCA does not know how
+ * many it will get (expectUntold()) until the SA tells it (expect()).
+ * It is not thread safe: it must only be used from the agent thread.
+ */
+final class SenderRegister {
+
+    /** Expected messages of a SA that has not told them yet */
+    static final int UNTOLD = -1;
+
+    /** Number of messages expected from each SA, unless it tells another */
+    private final int messagesPerSender;
+    /** SA name -> slot. Integer values are created once, when a SA is first seen */
+    private final Map<String, Integer> slots;
+    /** Slot -> SA name */
+    private String[] names;
+    /** Slot -> nº of msg received from the SA */
+    private int[] received;
+    /** Slot -> nº of msg expected from the SA, or UNTOLD */
+    private int[] expected;
+    /** Slot -> whether the SA told the nº of msg it sent */
+    private boolean[] told;
+    /** Slot -> highest sequence number received from the SA, or -1 */
+    private long[] lastSequence;
+    private int size = 0;
+    /** Number of SA's from which exactly the expected messages have been received */
+    private int completed = 0;
+
+    SenderRegister(int expectedSenders, int messagesPerSender) {
+        int capacity = Math.max(expectedSenders, 1);
+        this.messagesPerSender = messagesPerSender;
+        this.slots = new HashMap<>(capacity * 2);
+        this.names = new String[capacity];
+        this.received = new int[capacity];
+        this.expected = new int[capacity];
+        this.told = new boolean[capacity];
+        this.lastSequence = new long[capacity];
+        Arrays.fill(lastSequence, -1);
+    }
+
+    /**
+     * Slot of the SA, assigning the next free one the first time it is seen.
+     */
+    int slotOf(AID sender) {
+        return slotOf(sender.getName());
+    }
+
+    int slotOf(String sender) {
+        Integer slot = slots.get(sender);
+        if (slot != null) {
+            return slot;
+        }
+        if (size == received.length) {
+            int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            received = Arrays.copyOf(received, capacity);
+            expected = Arrays.copyOf(expected, capacity);
+            told = Arrays.copyOf(told, capacity);
+            lastSequence = Arrays.copyOf(lastSequence, capacity);
+            Arrays.fill(lastSequence, size, capacity, -1);
+        }
+        slots.put(sender, size);
+        names[size] = sender;
+        expected[size] = messagesPerSender;
+        if (messagesPerSender == 0) {
+            completed++;
+        }
+        return size++;
+    }
+
+    /**
+     * Account 'count' messages received from the SA in the slot.
+     */
+    void add(int slot, int count) {
+        int before = received[slot];
+        int after = before + count;
+        received[slot] = after;
+        if (before == expected[slot]) {
+            completed--;
+        }
+        if (after == expected[slot]) {
+            completed++;
+        }
+    }
+
+    /**
+     * The SA in the slot distributes its messages: do not expect
+     * messagesPerSender from it, but the nº it tells, if it has not already.
+     */
+    void expectUntold(int slot) {
+        if (!told[slot]) {
+            setExpected(slot, UNTOLD);
+        }
+    }
+
+    /** The SA in the slot told the nº of msg it sent */
+    void expect(int slot, int total) {
+        setExpected(slot, total);
+        told[slot] = true;
+    }
+
+    private void setExpected(int slot, int total) {
+        if (received[slot] == expected[slot]) {
+            completed--;
+        }
+        expected[slot] = total;
+        if (received[slot] == total) {
+            completed++;
+        }
+    }
+
+    /**
+     * Check the sequence number of a message received from the SA in the slot.
+     * @return false if a message with a higher sequence number was received before
+     */
+    boolean checkOrder(int slot, long sequence) {
+        if (sequence < lastSequence[slot]) {
+            return false;
+        }
+        lastSequence[slot] = sequence;
+        return true;
+    }
+
+    /** Slot of the SA, or -1 if no message has been received from it */
+    int find(String sender) {
+        Integer slot = slots.get(sender);
+        return slot != null ? slot : -1;
+    }
+
+    String nameOf(int slot) {
+        return names[slot];
+    }
+
+    int received(int slot) {
+        return received[slot];
+    }
+
+    /** Nº of msg expected from the SA in the slot, or UNTOLD */
+    int expected(int slot) {
+        return expected[slot];
+    }
+
+    /** Number of SA's from which messages have been received */
+    int size() {
+        return size;
+    }
+
+    /** Number of SA's from which all expected messages have been received */
+    int completed() {
+        return completed;
+    }
+
+    /**
+     * True when exactly the expected messages have been received from each
+     * of the given number of SA's.
+     */
+    boolean isComplete(int numberOfSenders) {
+        return size == numberOfSenders && completed == numberOfSenders;
+    }
+
+    /**
+     * True when exactly the expected messages have been received from each
+     * of the given SA's, at least one, whatever was received from others.
+     * O(1) unless enough SA's are complete for them to be.
+     */
+    boolean isComplete(Collection<String> senders) {
+        if (senders.isEmpty() || completed < senders.size()) {
+            return false;
+        }
+        for (String sender : senders) {
+            Integer slot = slots.get(sender);
+            if (slot == null || received[slot] != expected[slot]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+import jade.lang.acl.ACLMessage;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Payload buffers of the SA's of this JVM, registered while they are sent, so
+ * that MCA's can measure the copies avoided by sending bytes: JADE hands a
+ * message to an agent of the same container by reference, every receiver
+ * sharing the byte array of the sender, while it serializes it to other
+ * containers. Arrays are compared by identity, so a received payload found
+ * here is the very buffer of the SA. Batches are built on each send and are
+ * not registered, so their bytes never count as shared.
+ * Buffers must never be modified once registered, as receivers may hold them.
+ */
+final class SharedPayloads {
+
+    /** Counters of a MCA: payload bytes received, and those received in the buffer of their SA */
+    static final String BYTES = "payload.bytes";
+    static final String SHARED_BYTES = "payload.shared.bytes";
+
+    private static final Set<byte[]> buffers = Collections.newSetFromMap(new ConcurrentHashMap<byte[], Boolean>());
+
+    private SharedPayloads() {
+    }
+
+    static void register(byte[] buffer) {
+        buffers.add(buffer);
+    }
+
+    static void unregister(byte[] buffer) {
+        buffers.remove(buffer);
+    }
+
+    /**
+     * Payload bytes received by a MCA, counted without decoding them. It must
+     * only be used from one thread.
+     */
+    static final class Counter {
+
+        private long bytes = 0;
+        private long sharedBytes = 0;
+
+        void count(ACLMessage msg) {
+            byte[] content = msg.getByteSequenceContent();
+            if (content == null) {
+                return;
+            }
+            bytes += content.length;
+            if (buffers.contains(content)) {
+                sharedBytes += content.length;
+            }
+        }
+
+        void addTo(StatisticsRecord record) {
+            record.counters.put(BYTES, bytes);
+            record.counters.put(SHARED_BYTES, sharedBytes);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import jade.lang.acl.ACLMessage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Envelope packing several spam payloads in the byte sequence content of one
+ * ACLMessage, so that the per-message cost of JADE (envelope, receivers, MTP)
+ * is paid once per batch. The number of payloads is also set as a user
+ * defined parameter, so MCA's can count them without decoding the content.
+ * Layout, big endian: the number of payloads, then for each payload its
+ * sequence number (long), its intended send time in microseconds or -1 (long),
+ * its length (int) and its bytes.
+ */
+final class SpamBatch {
+
+    /** Number of payloads packed in the message */
+    static final String SIZE = "spamit-batch";
+
+    private static final int PAYLOAD_HEADER = 8 + 8 + 4;
+
+    private SpamBatch() {
+    }
+
+    /**
+     * Pack 'count' payloads, numbered from firstSequence on, in the content of
+     * the message. All the payloads of the factory have the same length.
+     * @param intendedTimes intended send time of each payload in microseconds,
+     *                      or null when the SA is not rate controlled
+     */
+    static void pack(ACLMessage msg, PayloadFactory payloads, long firstSequence, long[] intendedTimes, int count) {
+        int payloadLength = payloads.get(firstSequence).length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + count * (PAYLOAD_HEADER + payloadLength));
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(firstSequence + i);
+            buffer.putLong(intendedTimes != null ? intendedTimes[i] : -1);
+            buffer.putInt(payloadLength);
+            buffer.put(payloads.get(firstSequence + i));
+        }
+        msg.setByteSequenceContent(buffer.array());
+        msg.addUserDefinedParameter(SIZE, Integer.toString(count));
+    }
+
+    /** Number of logical payloads carried by the message: 1 unless it is a batch */
+    static int payloadCount(ACLMessage msg) {
+        String size = msg.getUserDefinedParameter(SIZE);
+        return size != null ? Integer.parseInt(size) : 1;
+    }
+
+    /** Length of each payload of a batch of 'count' payloads packed in 'contentLength' bytes */
+    static int payloadLength(int contentLength, int count) {
+        return (contentLength - 4) / count - PAYLOAD_HEADER;
+    }
+
+    static boolean isBatch(ACLMessage msg) {
+        return msg.getUserDefinedParameter(SIZE) != null;
+    }
+
+    /**
+     * Iterates over the payloads of a batch without copying them. A reader can
+     * be reused for any number of messages with reset().
+     */
+    static final class Reader {
+
+        private ByteBuffer buffer;
+        private int remaining;
+        private long sequence;
+        private long intendedTime;
+        private int payloadOffset;
+        private int payloadLength;
+
+        /** Start reading the batch in the content of the message */
+        void reset(ACLMessage msg) {
+            buffer = ByteBuffer.wrap(msg.getByteSequenceContent());
+            remaining = buffer.getInt();
+        }
+
+        /** Move to the next payload, returning false when there are no more */
+        boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            sequence = buffer.getLong();
+            intendedTime = buffer.getLong();
+            payloadLength = buffer.getInt();
+            payloadOffset = buffer.position();
+            buffer.position(payloadOffset + payloadLength);
+            return true;
+        }
+
+        long sequence() {
+            return sequence;
+        }
+
+        /** Intended send time of the payload in microseconds, or -1 if not rate controlled */
+        long intendedTime() {
+            return intendedTime;
+        }
+
+        int payloadOffset() {
+            return payloadOffset;
+        }
+
+        int payloadLength() {
+            return payloadLength;
+        }
+    }
+}
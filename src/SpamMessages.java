@@ -0,0 +1,152 @@
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+/**
+ * Helpers to read and write the user defined parameters that SpammerAgent's
+ * add to every spam message: a per-SA sequence number, used by the MCA's to
+ * detect reordering, and the send timestamp, used to measure the end-to-end
+ * latency including the time spent in the JADE mailbox.
+ */
+final class SpamMessages {
+
+    /** Sequence number of the message among the ones sent by its SA */
+    static final String SEQUENCE = "spamit-seq";
+    /** Time the message was sent, in microseconds (see currentTimeMicros()) */
+    static final String SEND_TIME = "spamit-sent";
+    /** Time the message was scheduled to be sent by a rate controlled SA, in microseconds */
+    static final String INTENDED_TIME = "spamit-intended";
+    /**
+     * Set on the messages of a SA distributing them among the MCA's, instead
+     * of sending each to all of them: payloads between two load reports it
+     * requests (see LoadReporter), 0 for none. Such a SA tells each MCA how
+     * many payloads it sent to it with an END message once done.
+     */
+    static final String DISTRIBUTE = "spamit-distribute";
+    /** Language of the END messages, whose content is the nº of payloads sent to the MCA */
+    static final String END_LANGUAGE = "spam-end";
+    static final MessageTemplate END_TEMPLATE = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+            MessageTemplate.MatchLanguage(END_LANGUAGE));
+    /**
+     * Set on the warmup messages a SA sends before the measured ones, when
+     * the experiment has a warmup phase (see WarmupTracker). The MCA's process
+     * them but leave them out of their statistics.
+     */
+    static final String WARMUP = "spamit-warmup";
+    /** Language of the WARM messages, whose content is the nº of warmup payloads sent to the MCA */
+    static final String WARM_LANGUAGE = "spam-warm";
+    static final MessageTemplate WARM_TEMPLATE = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+            MessageTemplate.MatchLanguage(WARM_LANGUAGE));
+    /**
+     * Language of the NACK's of a MCA shedding messages under overload (see
+     * PriorityScheduler): FAILURE messages to their SA whose content is the
+     * nº of payloads shed, with the sequence number of the message shed.
+     */
+    static final String SHED_LANGUAGE = "spam-shed";
+    static final MessageTemplate SHED_TEMPLATE = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.FAILURE),
+            MessageTemplate.MatchLanguage(SHED_LANGUAGE));
+
+    /**
+     * Template of the spam messages: INFORM in SpammerAgent.LANGUAGE, the
+     * language compared ignoring case as MatchLanguage does. It is one match
+     * on the fields instead of an AND of two templates, and is immutable, so
+     * it is built once and shared by all the MCA's: receive() runs it against
+     * every message it scans in the mailbox.
+     */
+    static final MessageTemplate TEMPLATE = new MessageTemplate(new MessageTemplate.MatchExpression() {
+        private static final long serialVersionUID = 3327405587342937113L;
+
+        @Override
+        public boolean match(ACLMessage msg) {
+            return msg.getPerformative() == ACLMessage.INFORM && SpammerAgent.LANGUAGE.equalsIgnoreCase(msg.getLanguage());
+        }
+    });
+
+    /**
+     * Wall clock and monotonic clock read once, so that currentTimeMicros()
+     * has the resolution of System.nanoTime() but can still be compared
+     * between agents running in different JVM's of the same host.
+     */
+    private static final long EPOCH_MICROS = System.currentTimeMillis() * 1000L;
+    private static final long EPOCH_NANOS = System.nanoTime();
+
+    private SpamMessages() {
+    }
+
+    static long currentTimeMicros() {
+        return toMicros(System.nanoTime());
+    }
+
+    /** Convert a System.nanoTime() value of this JVM to the clock of currentTimeMicros() */
+    static long toMicros(long nanoTime) {
+        return EPOCH_MICROS + (nanoTime - EPOCH_NANOS) / 1000L;
+    }
+
+    /**
+     * Set the sequence number and the send timestamp of the message. It must
+     * be called right before each send, since the message object is reused.
+     */
+    static void stamp(ACLMessage msg, long sequence) {
+        msg.addUserDefinedParameter(SEQUENCE, Long.toString(sequence));
+        msg.addUserDefinedParameter(SEND_TIME, Long.toString(currentTimeMicros()));
+    }
+
+    /**
+     * Like stamp(msg, sequence), also setting the time the message should
+     * have been sent according to the schedule of the SA.
+     */
+    static void stamp(ACLMessage msg, long sequence, long intendedTimeMicros) {
+        stamp(msg, sequence);
+        msg.addUserDefinedParameter(INTENDED_TIME, Long.toString(intendedTimeMicros));
+    }
+
+    /** NACK to the SA of a spam message shed with its 'count' payloads */
+    static ACLMessage nack(ACLMessage msg, int count) {
+        ACLMessage nack = new ACLMessage(ACLMessage.FAILURE);
+        nack.addReceiver(msg.getSender());
+        nack.setLanguage(SHED_LANGUAGE);
+        nack.setContent(Integer.toString(count));
+        nack.addUserDefinedParameter(SEQUENCE, Long.toString(sequenceOf(msg)));
+        return nack;
+    }
+
+    /** Sequence number of the message, or -1 if it was not stamped */
+    static long sequenceOf(ACLMessage msg) {
+        return parse(msg.getUserDefinedParameter(SEQUENCE));
+    }
+
+    static boolean isWarmup(ACLMessage msg) {
+        return msg.getUserDefinedParameter(WARMUP) != null;
+    }
+
+    /** Value of DISTRIBUTE, or -1 if the message was sent to all MCA's */
+    static int loadReportPeriodOf(ACLMessage msg) {
+        return (int) parse(msg.getUserDefinedParameter(DISTRIBUTE));
+    }
+
+    /** Send timestamp of the message in microseconds, or -1 if it was not stamped */
+    static long sendTimeOf(ACLMessage msg) {
+        return parse(msg.getUserDefinedParameter(SEND_TIME));
+    }
+
+    /**
+     * Time from which the latency of the message is measured: the intended send
+     * time when the SA is rate controlled, so that a late SA does not hide the
+     * queueing delay (coordinated omission), or else the actual send time.
+     * Returns -1 if the message was not stamped.
+     */
+    static long startTimeOf(ACLMessage msg) {
+        long intendedTime = parse(msg.getUserDefinedParameter(INTENDED_TIME));
+        return intendedTime >= 0 ? intendedTime : sendTimeOf(msg);
+    }
+
+    private static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -1,24 +1,74 @@
 import jade.core.AID;
 import jade.core.Agent;
-import jade.core.behaviours.OneShotBehaviour;
+import jade.core.behaviours.Behaviour;
+import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.SimpleBehaviour;
+import jade.core.behaviours.ThreadedBehaviourFactory;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.domain.FIPAException;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.util.Logger;
+import jade.util.leap.Iterator;
 
-import java.util.Random;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Spammer Agent (SA). Sends N messages of size M to all MessageConsumingServices's when it receives
- * a START message from ExperimentMasterAgent.
+ * a START message from ExperimentMasterAgent. The MCA's are followed in the DF
+ * (see DirectoryCache); the SA waits for as many as the EMA counted in START.
  * Run:
- * java jade.Boot -container SpammerAgent:SpammerAgent(N, M)
+ * java jade.Boot -container SpammerAgent:SpammerAgent(N, M[, options])
  * - N: number of messages.
  * - M: size of each message.
+ * Options (key=value):
+ * - rate: messages per second. When set, messages are sent on a fixed schedule
+ *   (open loop) instead of in a single burst.
+ * - duration: seconds to send at 'rate'. When set, it overrides N with rate * duration.
+ * - batch: number of messages packed in each ACLMessage (see SpamBatch). The
+ *   MCA's still count every packed message, so N is unchanged. Default 1.
+ * - window: credits granted by each MCA for flow control (see CreditGranter).
+ *   The SA pauses when it has sent 'window' messages not yet processed by
+ *   some MCA. It must match the window of the MCA's. Default 0, no flow control.
+ * - payload: content of the messages (see PayloadFactory): random, fixed or
+ *   file:PATH. Default random.
+ * - variants: number of distinct payloads, sent in turn. Default 1.
+ * - seed: seed of the random payloads. Default the current time.
+ * - metrics: how live metrics are exposed: jmx, off or http:PORT (see AgentMetrics). Default jmx.
+ * - metricsWindow: seconds covered by the live rates. Default 10.
+ * - shards: fan-out. The MCA's are split round-robin in this number of shards,
+ *   each sent all the messages by its own behaviour in its own thread, so one
+ *   SA can drive many MCA's. 'all' sends to each MCA separately. Default 1:
+ *   one message addressed to all MCA's, sent by the agent thread.
+ * - journal: directory to record every message sent in, as DIR/NAME.journal
+ *   (see TrafficJournal). Default none.
+ * - distribute: send each message to one MCA, chosen by a policy (see
+ *   ConsumerSelector): round-robin, hash or least-loaded, instead of to all
+ *   of them. The SA then tells each MCA how many it sent to it, so the MCA's
+ *   ignore their N. It cannot be used with several shards. Default none.
+ * - keys: nº of distinct keys of the messages for distribute=hash, at most
+ *   ConsumerSelector.MAX_KEYS. Default 1024.
+ * - replay: journal of a previous run to send again: the same nº of messages,
+ *   payload size and batches, each message sent at the same time from the
+ *   start as it was then (open loop, like 'rate'). N and M are ignored, 'rate'
+ *   and 'duration' cannot be used with it. Use the same 'seed' for the same
+ *   payloads.
+ * Payloads are generated once at setup, before the START message.
+ * When the EMA runs a warmup phase, the SA first sends warmup messages, at
+ * 'rate' or as fast as the credits allow, until the EMA ends it with WARMED;
+ * it then tells each MCA how many it sent it (see WarmupTracker) and sends
+ * its N messages when the EMA sends MEASURE. The warmup is not reported.
+ * MCA's shedding messages under overload may NACK them; the SA counts the
+ * payloads NACK'ed and logs them when it is taken down.
+ * When done, the SA reports to the ExperimentMasterAgent the messages sent,
+ * the time it was blocked by flow control and the time spent sending, also
+ * per shard, in a StatisticsRecord.
  */
 public class SpammerAgent extends Agent {
 
@@ -28,28 +78,144 @@ public class SpammerAgent extends Agent {
 
     private int numberOfMessages ;
     private int sizeOfEachMessage;
+    /** Target send rate in messages per second, or 0 to send all messages in one burst */
+    private double messagesPerSecond;
+    /** Number of messages packed in each ACLMessage, 1 to send them one by one */
+    private int messagesPerBatch = 1;
+    /** Credits granted by each MCA for flow control, or 0 if it is disabled */
+    private int window;
+    private PayloadFactory payloads;
+    private AgentMetrics metrics;
+    /** Maximum number of shards the MCA's are split in */
+    private int numberOfShards = 1;
+    /** Shards being sent, set when START is received */
+    private Shard[] shards;
+    private int numberOfShardsDone = 0;
+    private final ThreadedBehaviourFactory threadedBehaviours = new ThreadedBehaviourFactory();
+    /** MCA's registered in the DF, the receivers of the spam */
+    private DirectoryCache messageConsumingAgents;
+    /** Journal of the messages sent, or null */
+    private TrafficJournal journal;
+    /** Schedule of a previous run to send again, or null */
+    private TrafficJournal.Trace replay;
+    /** Policy of ConsumerSelector, or null to send each message to all MCA's */
+    private String distribution;
+    /** Keys of the messages for the hash policy */
+    private int keys;
+    /** Set when the EMA ends the warmup, for the warmup behaviours to stop */
+    private volatile boolean warmupOver = false;
+    /** Payloads shed by the MCA's, as told by their NACK's */
+    private long numOfMessagesShed = 0;
 
     @Override
     protected void setup() {
         super.setup();
         Object[] args = getArguments();
 
-        if (args != null && args.length == 2) {
+        if (args != null && args.length >= 2) {
             numberOfMessages = Integer.parseInt((String) args[0]);
             sizeOfEachMessage = Integer.parseInt((String) args[1]);
-            logger.log(Logger.INFO, "Agent " + getLocalName() + " - Target: " + numberOfMessages + " msg / " + sizeOfEachMessage + " size");
+            try {
+                AgentArguments options = new AgentArguments(args, 2);
+                messagesPerSecond = options.getDouble("rate", 0.0);
+                messagesPerBatch = options.getInt("batch", 1);
+                if (options.has("replay")) {
+                    if (options.has("rate") || options.has("duration")) {
+                        throw new IllegalArgumentException("'replay' cannot be used with 'rate' or 'duration'");
+                    }
+                    replay = TrafficJournal.Trace.read(options.get("replay", null));
+                    numberOfMessages = replay.offsets.length;
+                    sizeOfEachMessage = replay.size;
+                    messagesPerBatch = replay.batch;
+                }
+                if (messagesPerBatch < 1) {
+                    throw new IllegalArgumentException("'batch' must be at least 1");
+                }
+                window = options.getInt("window", 0);
+                if (window > 0 && window < messagesPerBatch) {
+                    throw new IllegalArgumentException("'window' must not be smaller than 'batch'");
+                }
+                if (options.has("duration")) {
+                    if (messagesPerSecond <= 0) {
+                        throw new IllegalArgumentException("'duration' requires a positive 'rate'");
+                    }
+                    numberOfMessages = (int) Math.round(messagesPerSecond * options.getDouble("duration", 0.0));
+                }
+                payloads = PayloadFactory.create(options.get("payload", "random"), sizeOfEachMessage,
+                        options.getInt("variants", 1), options.getLong("seed", System.nanoTime()));
+                String shardOption = options.get("shards", "1");
+                numberOfShards = shardOption.equals("all") ? Integer.MAX_VALUE : Integer.parseInt(shardOption);
+                if (numberOfShards < 1) {
+                    throw new IllegalArgumentException("'shards' must be at least 1");
+                }
+                distribution = options.get("distribute", null);
+                keys = options.getInt("keys", 1024);
+                if (keys < 1 || keys > ConsumerSelector.MAX_KEYS) {
+                    throw new IllegalArgumentException("'keys' must be between 1 and " + ConsumerSelector.MAX_KEYS);
+                }
+                if (distribution != null) {
+                    ConsumerSelector.check(distribution);
+                    if (numberOfShards > 1) {
+                        throw new IllegalArgumentException("'distribute' cannot be used with several shards");
+                    }
+                }
+                metrics = new AgentMetrics(this, options.getInt("metricsWindow", 10)) {
+                    private static final long serialVersionUID = 4490712245836211270L;
+                    /** Messages sent by the shard threads at the previous sample */
+                    private long sampledMessagesSent = 0;
+
+                    @Override
+                    protected void sample() {
+                        // A single shard is sent by the agent thread, which records itself
+                        if (shards != null && shards.length > 1) {
+                            long sent = 0;
+                            for (Shard shard : shards) {
+                                sent += shard.numOfMessagesSent;
+                            }
+                            addSent(sent - sampledMessagesSent);
+                            sampledMessagesSent = sent;
+                        }
+                    }
+                };
+                metrics.expose(options.get("metrics", "jmx"), logger);
+                journal = TrafficJournal.open(options.get("journal", null), getLocalName());
+            } catch (IllegalArgumentException | IOException e) {
+                logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Incorrect arguments", e);
+                doDelete();
+                return;
+            }
+            logger.log(Logger.INFO, "Agent " + getLocalName() + " - Target: " + numberOfMessages + " msg / " + sizeOfEachMessage + " size"
+                    + (messagesPerSecond > 0 ? " / " + messagesPerSecond + " msg/s" : "")
+                    + (replay != null ? " / replayed schedule" : "")
+                    + (messagesPerBatch > 1 ? " / " + messagesPerBatch + " msg per batch" : "")
+                    + (window > 0 ? " / window " + window : "")
+                    + (payloads.variants() > 1 ? " / " + payloads.variants() + " payloads" : "")
+                    + (numberOfShards > 1 ? " / " + (numberOfShards == Integer.MAX_VALUE ? "all" : numberOfShards) + " shards" : "")
+                    + (distribution != null ? " / distributed " + distribution : ""));
 
         } else {
 
             numberOfMessages = 1;
             sizeOfEachMessage = 3;
+            try {
+                payloads = PayloadFactory.create("random", sizeOfEachMessage, 1, System.nanoTime());
+            } catch (IOException e) {
+                // Only corpus files are read
+                throw new IllegalStateException(e);
+            }
+            metrics = new AgentMetrics(this, 10);
+            metrics.expose("jmx", logger);
             logger.log(Logger.INFO, "Agent " + getLocalName() + " - Target: " + numberOfMessages + " msg / " + sizeOfEachMessage + " size");
 
         }
 
+        payloads.share();
+
         ServiceDescription sd = new ServiceDescription();
         sd.setType("SpammerAgent");
         sd.setName("SpammerAgentService");
+        // So that the MCA's can tell the messages crossing containers apart
+        sd.addProperties(new Property(DirectoryCache.CONTAINER, here().getName()));
         DFAgentDescription dfd = new DFAgentDescription();
         dfd.setName(getAID());
         dfd.addServices(sd);
@@ -60,22 +226,102 @@ public class SpammerAgent extends Agent {
             doDelete();
         }
 
-        addBehaviour(new SimpleBehaviour(this) {
+        // Follow the MCA's, so that they are known when START comes
+        messageConsumingAgents = new DirectoryCache(this, "MessageConsumingAgent");
+        try {
+            messageConsumingAgents.subscribe();
+        } catch (FIPAException e) {
+            logger.log(Logger.SEVERE, "Cannot get MCA's", e);
+        }
+        addBehaviour(messageConsumingAgents);
+
+        addBehaviour(metrics);
+        // Take the NACK's of the MCA's shedding messages out of the mailbox
+        addBehaviour(new CyclicBehaviour(this) {
+            private static final long serialVersionUID = 6093127478839516617L;
+
+            @Override
+            public void action() {
+                ACLMessage nack = myAgent.receive(SpamMessages.SHED_TEMPLATE);
+                if (nack == null) {
+                    block();
+                    return;
+                }
+                numOfMessagesShed += Integer.parseInt(nack.getContent());
+            }
+        });
+        SimpleBehaviour startBehaviour = new SimpleBehaviour(this) {
 
             private static final long serialVersionUID = -1344483830624564835L;
             private boolean start = false;
+            /** Number of MCA's counted by the EMA when it sent START, or -1 until START is received */
+            private int expectedMessageConsumingAgents = -1;
+            /** Whether the START asked for a warmup phase */
+            private boolean warmup = false;
+            /** Whether the shards are sending warmup messages, until the EMA sends WARMED and then MEASURE */
+            private boolean warmingUp = false;
 
             @Override
             public void action() {
-                MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchSender(new AID("ExperimentMasterAgent", AID.ISLOCALNAME)),
-                        MessageTemplate.MatchContent(ExperimentMasterAgent.START));
-                ACLMessage msg = myAgent.receive(mt);
-                if (msg != null) {
-                    // Start spamming MCA's
-                    myAgent.addBehaviour(new SpammerBehaviour());
-                    start = true;
-                } else {
+                if (warmingUp) {
+                    MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchSender(new AID("ExperimentMasterAgent", AID.ISLOCALNAME)),
+                            MessageTemplate.or(MessageTemplate.MatchContent(ExperimentMasterAgent.WARMED),
+                                    MessageTemplate.MatchContent(ExperimentMasterAgent.MEASURE)));
+                    ACLMessage msg = myAgent.receive(mt);
+                    if (msg == null) {
+                        block();
+                    } else if (msg.getContent().equals(ExperimentMasterAgent.WARMED)) {
+                        // Wake up the warmup behaviours, even those out of credit, to end
+                        warmupOver = true;
+                        for (Shard shard : shards) {
+                            shard.warmupBehaviour.restart();
+                        }
+                    } else {
+                        logger.log(Logger.INFO, "Agent " + getLocalName() + " - Warmup over, sending the measured messages");
+                        startSending();
+                        start = true;
+                    }
+                    return;
+                }
+                if (expectedMessageConsumingAgents < 0) {
+                    MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchSender(new AID("ExperimentMasterAgent", AID.ISLOCALNAME)),
+                            MessageTemplate.MatchContent(ExperimentMasterAgent.START));
+                    ACLMessage msg = myAgent.receive(mt);
+                    if (msg == null) {
+                        block();
+                        return;
+                    }
+                    String consumers = msg.getUserDefinedParameter(ExperimentMasterAgent.CONSUMERS);
+                    expectedMessageConsumingAgents = consumers != null ? Integer.parseInt(consumers) : 0;
+                    warmup = ExperimentMasterAgent.WARMUP.equals(msg.getUserDefinedParameter(ExperimentMasterAgent.PHASE));
+                }
+                // The notifications of the DF may arrive after START
+                messageConsumingAgents.update();
+                if (messageConsumingAgents.size() < expectedMessageConsumingAgents) {
                     block();
+                    return;
+                }
+                logger.log(Logger.INFO, "Found " + messageConsumingAgents.size() + " MCA's");
+                shards = createShards(messageConsumingAgents.members());
+                if (warmup) {
+                    for (Shard shard : shards) {
+                        shard.warmupBehaviour = new WarmupBehaviour(shard);
+                        myAgent.addBehaviour(shards.length > 1 ? threadedBehaviours.wrap(shard.warmupBehaviour) : shard.warmupBehaviour);
+                    }
+                    warmingUp = true;
+                    return;
+                }
+                startSending();
+                start = true;
+            }
+
+            /** Start spamming MCA's, each shard in its own thread if there are several */
+            private void startSending() {
+                metrics.memory().start();
+                for (Shard shard : shards) {
+                    Behaviour sender = messagesPerSecond > 0 || replay != null ? new RateControlledSpammerBehaviour(shard)
+                            : new SpammerBehaviour(shard);
+                    myAgent.addBehaviour(shards.length > 1 ? threadedBehaviours.wrap(sender) : sender);
                 }
             }
 
@@ -83,54 +329,608 @@ public class SpammerAgent extends Agent {
             public boolean done() {
                 return start;
             }
-        });
+        };
+        addBehaviour(startBehaviour);
+        messageConsumingAgents.restartOnChange(startBehaviour);
+    }
+
+    @Override
+    protected void takeDown() {
+        // Leave the yellow pages, so that agents started later do not count this one
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException e) {
+            logger.log(Logger.FINE, "Agent " + getLocalName() + " - Not registered with DF", e);
+        }
+        threadedBehaviours.interrupt();
+        if (numOfMessagesShed > 0) {
+            logger.log(Logger.INFO, "Agent " + getLocalName() + " - " + numOfMessagesShed + " msg shed by the MCA's");
+        }
+        if (payloads != null) {
+            payloads.release();
+        }
+        if (messageConsumingAgents != null) {
+            messageConsumingAgents.close();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.log(Logger.WARNING, "Agent " + getLocalName() + " - Cannot close journal " + journal.file(), e);
+            }
+        }
+    }
+
+    /**
+     * Split the MCA's round-robin in at most numberOfShards shards, none empty.
+     */
+    private Shard[] createShards(AID[] MCAs) {
+        Shard[] result = new Shard[Math.max(1, Math.min(numberOfShards, MCAs.length))];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new Shard(i);
+        }
+        for (int i = 0; i < MCAs.length; i++) {
+            result[i % result.length].msg.addReceiver(MCAs[i]);
+            result[i % result.length].numberOfReceivers++;
+        }
+        if (distribution != null) {
+            result[0].distribute(ConsumerSelector.create(distribution, MCAs, keys, this));
+        }
+        for (Shard shard : result) {
+            shard.credits = new Credits(shard.msg);
+        }
+        if (journal != null) {
+            for (Shard shard : result) {
+                StringBuilder receivers = new StringBuilder();
+                Iterator names = shard.msg.getAllReceiver();
+                while (names.hasNext()) {
+                    receivers.append(receivers.length() == 0 ? "" : ",").append(((AID) names.next()).getName());
+                }
+                shard.journalReceivers = journal.idOf(receivers.toString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * MCA's served by one sending behaviour and what was sent to them. With
+     * several shards, each is sent by its own thread, the only one writing
+     * it; the agent thread reads the counters for the live metrics.
+     */
+    private class Shard {
+
+        private final int index;
+        /** Spam message addressed to all MCA's of the shard, or to the one chosen for it */
+        private final ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        private int numberOfReceivers = 0;
+        private volatile int numOfMessagesSent = 0;
+        /** Time spent in send(), in nanoseconds */
+        private volatile long sendTime = 0;
+        /** Time out of credit, in nanoseconds, set when the shard is done */
+        private long blockedTime = 0;
+        /** Whether the thread of the shard is in the memory account */
+        private boolean accounted = false;
+        /** Id of the receivers in the journal */
+        private int journalReceivers;
+        /** Chooser of the MCA of each message, or null when they are sent to all */
+        private ConsumerSelector selector;
+        /** Payloads sent to each MCA of the selector */
+        private int[] sentTo;
+        /** Credits of the MCA's of the shard, kept from the warmup to the measured messages */
+        private Credits credits;
+        /** Whether the messages sent are warmup ones, which are not accounted */
+        private volatile boolean warmingUp = false;
+        /** Sender of the warmup messages, or null without warmup */
+        private Behaviour warmupBehaviour;
+        private int numOfWarmupMessagesSent = 0;
+        /** Warmup payloads sent to each MCA of the selector */
+        private int[] warmupSentTo;
+
+        Shard(int index) {
+            this.index = index;
+            msg.setLanguage(LANGUAGE);
+        }
+
+        /** Send each message to one MCA, chosen by the selector */
+        void distribute(ConsumerSelector selector) {
+            this.selector = selector;
+            sentTo = new int[selector.consumers.length];
+            warmupSentTo = new int[selector.consumers.length];
+            msg.addUserDefinedParameter(SpamMessages.DISTRIBUTE, Integer.toString(selector.loadReportPeriod()));
+        }
+
+        /**
+         * Address the message to the MCA chosen for it when distributing.
+         * @return index of the MCA in the selector, or -1 when sent to all
+         */
+        int route(long sequence) {
+            if (selector == null) {
+                return -1;
+            }
+            int consumer = selector.select(sequence);
+            msg.clearAllReceiver();
+            msg.addReceiver(selector.consumers[consumer]);
+            return consumer;
+        }
+
+        /** Payloads delivered, each one to all the MCA's of the shard or to the one chosen */
+        long delivered() {
+            return (long) numOfMessagesSent * (selector != null ? 1 : numberOfReceivers);
+        }
+
+        /**
+         * Send the message holding 'count' payloads and account it.
+         * @param consumer MCA chosen by route()
+         */
+        void send(int consumer, int count) {
+            if (!accounted && shards.length > 1 && !warmingUp) {
+                metrics.memory().addThread(Thread.currentThread());
+                accounted = true;
+            }
+            long sendStart = System.nanoTime();
+            SpammerAgent.this.send(msg);
+            sendTime += System.nanoTime() - sendStart;
+            if (consumer >= 0) {
+                selector.sent(consumer, count);
+            }
+            if (warmingUp) {
+                numOfWarmupMessagesSent += count;
+                if (consumer >= 0) {
+                    warmupSentTo[consumer] += count;
+                }
+                return;
+            }
+            if (consumer >= 0) {
+                sentTo[consumer] += count;
+            }
+            if (journal != null) {
+                journal.sent(consumer >= 0 ? journal.idOf(selector.consumers[consumer].getName()) : journalReceivers, msg);
+            }
+            numOfMessagesSent += count;
+            if (shards.length == 1) {
+                metrics.sent(count);
+            }
+        }
+
+        /** Flag the messages sent from now on as warmup ones */
+        void startWarmup() {
+            msg.addUserDefinedParameter(SpamMessages.WARMUP, "true");
+            warmingUp = true;
+        }
+
+        /**
+         * Called by the warmup behaviour of the shard when the warmup is over:
+         * tell each MCA how many warmup payloads it was sent, after them, and
+         * forget the time spent sending and blocked meanwhile.
+         */
+        void endWarmup() {
+            if (selector != null) {
+                for (int i = 0; i < warmupSentTo.length; i++) {
+                    sendWarm(selector.consumers[i], warmupSentTo[i]);
+                }
+            } else {
+                Iterator receivers = msg.getAllReceiver();
+                while (receivers.hasNext()) {
+                    sendWarm((AID) receivers.next(), numOfWarmupMessagesSent);
+                }
+            }
+            logger.log(Logger.INFO, "Agent " + getLocalName() + (shards.length > 1 ? " shard " + index : "") + " - Sent "
+                    + numOfWarmupMessagesSent + " warmup msg");
+            msg.removeUserDefinedParameter(SpamMessages.WARMUP);
+            credits.resetBlockedTime();
+            sendTime = 0;
+            warmingUp = false;
+        }
+
+        private void sendWarm(AID receiver, int count) {
+            ACLMessage warm = new ACLMessage(ACLMessage.INFORM);
+            warm.addReceiver(receiver);
+            warm.setLanguage(SpamMessages.WARM_LANGUAGE);
+            warm.setContent(Integer.toString(count));
+            SpammerAgent.this.send(warm);
+        }
+
+        /**
+         * Called by the behaviour of the shard when done. The SA reports
+         * when all its shards are done.
+         */
+        void done(Credits credits) {
+            blockedTime = credits.getBlockedTime();
+            if (selector != null) {
+                // After the spam, so that the MCA's get it last
+                for (int i = 0; i < sentTo.length; i++) {
+                    ACLMessage end = new ACLMessage(ACLMessage.INFORM);
+                    end.addReceiver(selector.consumers[i]);
+                    end.setLanguage(SpamMessages.END_LANGUAGE);
+                    end.setContent(Integer.toString(sentTo[i]));
+                    SpammerAgent.this.send(end);
+                }
+            }
+            if (accounted) {
+                // Its thread ends with the behaviour
+                metrics.memory().removeThread(Thread.currentThread());
+            }
+            boolean all;
+            synchronized (SpammerAgent.this) {
+                all = ++numberOfShardsDone == shards.length;
+            }
+            if (all) {
+                sendReport();
+            }
+        }
+    }
+
+    /**
+     * Set the content of the message to the payloads numbered from
+     * firstSequence on: the payload itself, shared and not copied, or a batch.
+     * @param intendedTimes see SpamBatch.pack
+     */
+    private void setPayload(ACLMessage msg, int firstSequence, long[] intendedTimes, int count) {
+        if (messagesPerBatch > 1) {
+            SpamBatch.pack(msg, payloads, firstSequence, intendedTimes, count);
+        } else {
+            msg.setByteSequenceContent(payloads.get(firstSequence));
+        }
+    }
+
+    /**
+     * Report the messages sent, the time blocked by flow control and the time
+     * spent sending to the EMA. The messages sent are those sent to every
+     * MCA, and the SA is blocked as long as its most blocked shard.
+     */
+    private void sendReport() {
+        long numOfMessagesSent = Long.MAX_VALUE;
+        long blockedTime = 0;
+        long sendTime = 0;
+        long delivered = 0;
+        StatisticsRecord report = new StatisticsRecord(StatisticsRecord.Kind.REPORT);
+        for (Shard shard : shards) {
+            delivered += shard.delivered();
+            if (shard.selector != null) {
+                for (int i = 0; i < shard.sentTo.length; i++) {
+                    report.counters.put(StatisticsRecord.CONSUMER + shard.selector.consumers[i].getName() + "." + StatisticsRecord.SENT,
+                            (long) shard.sentTo[i]);
+                }
+            }
+            numOfMessagesSent = Math.min(numOfMessagesSent, shard.numOfMessagesSent);
+            blockedTime = Math.max(blockedTime, shard.blockedTime);
+            sendTime += shard.sendTime;
+            if (shards.length > 1) {
+                logger.log(Logger.INFO, "Agent " + getLocalName() + " - Shard " + shard.index + ": sent " + shard.numOfMessagesSent
+                        + " msg to " + shard.numberOfReceivers + " MCA's, " + shard.sendTime / 1000.0 / Math.max(shard.numOfMessagesSent, 1)
+                        + "us per msg, blocked by flow control for " + shard.blockedTime / 1000000.0 + "ms");
+                report.counters.put(StatisticsRecord.SHARD + shard.index + "." + StatisticsRecord.SENT, (long) shard.numOfMessagesSent);
+                report.counters.put(StatisticsRecord.SHARD + shard.index + "." + StatisticsRecord.SEND_TIME, shard.sendTime);
+            }
+        }
+        logger.log(Logger.INFO, "Agent " + getLocalName() + " - Sent " + numOfMessagesSent + " msg, blocked by flow control for "
+                + blockedTime / 1000000.0 + "ms, " + sendTime / 1000000.0 + "ms spent sending");
+        report.counters.put(StatisticsRecord.SENT, numOfMessagesSent);
+        report.counters.put(StatisticsRecord.DELIVERED, delivered);
+        report.counters.put(StatisticsRecord.BLOCKED_TIME, blockedTime);
+        report.counters.put(StatisticsRecord.SEND_TIME, sendTime);
+        metrics.memory().addTo(report);
+        report.send(this);
+    }
+
+    /**
+     * Credits left to send to each MCA (see CreditGranter). Since every
+     * message is sent to all MCA's, a message can only be sent when all of
+     * them have granted a credit. Without flow control there is no limit.
+     */
+    private class Credits {
+
+        /** MCA name -> index in available */
+        private final Map<String, Integer> indexes = new HashMap<>();
+        /** Grants of the MCA's of the shard only, as shards share the mailbox */
+        private final MessageTemplate grantTemplate = MessageTemplate.and(MessageTemplate.and(
+                MessageTemplate.MatchPerformative(ACLMessage.INFORM), MessageTemplate.MatchLanguage(CreditGranter.LANGUAGE)),
+                new MessageTemplate(new MessageTemplate.MatchExpression() {
+                    private static final long serialVersionUID = -2496187432690545129L;
+
+                    @Override
+                    public boolean match(ACLMessage msg) {
+                        return indexes.containsKey(msg.getSender().getName());
+                    }
+                }));
+        private final int[] available;
+        /** Minimum of available, kept up to date on every change */
+        private int minAvailable;
+        /** System.nanoTime() since the SA is out of credit, or -1 */
+        private long blockedSince = -1;
+        private long blockedTime = 0;
+
+        Credits(ACLMessage msg) {
+            Iterator receivers = msg.getAllReceiver();
+            while (receivers.hasNext()) {
+                indexes.put(((AID) receivers.next()).getName(), indexes.size());
+            }
+            available = new int[indexes.size()];
+            Arrays.fill(available, window);
+            minAvailable = window;
+        }
+
+        /**
+         * Take 'count' credits of the MCA, or of every MCA if receiver is -1,
+         * if they are available. If not, the SA is blocked until a grant
+         * arrives, and the time is accounted.
+         */
+        boolean tryAcquire(int receiver, int count) {
+            if (window == 0) {
+                return true;
+            }
+            if (available(receiver) < count) {
+                receiveGrants();
+                if (available(receiver) < count) {
+                    if (blockedSince < 0) {
+                        blockedSince = System.nanoTime();
+                    }
+                    return false;
+                }
+            }
+            if (blockedSince >= 0) {
+                blockedTime += System.nanoTime() - blockedSince;
+                blockedSince = -1;
+            }
+            if (receiver >= 0) {
+                available[receiver] -= count;
+                minAvailable = Math.min(minAvailable, available[receiver]);
+                return true;
+            }
+            for (int i = 0; i < available.length; i++) {
+                available[i] -= count;
+            }
+            minAvailable -= count;
+            return true;
+        }
+
+        /** Credits of the MCA, or those of all if receiver is -1 */
+        private int available(int receiver) {
+            return receiver >= 0 ? available[receiver] : minAvailable;
+        }
 
+        private void receiveGrants() {
+            ACLMessage grant = receive(grantTemplate);
+            while (grant != null) {
+                Integer index = indexes.get(grant.getSender().getName());
+                if (index != null) {
+                    available[index] += Integer.parseInt(grant.getContent());
+                }
+                grant = receive(grantTemplate);
+            }
+            minAvailable = Integer.MAX_VALUE;
+            for (int credits : available) {
+                minAvailable = Math.min(minAvailable, credits);
+            }
+        }
+
+        /** Forget the time out of credit so far, e.g. during the warmup */
+        void resetBlockedTime() {
+            blockedTime = 0;
+            blockedSince = -1;
+        }
 
+        /** Total time the SA has been out of credit, in nanoseconds */
+        long getBlockedTime() {
+            return blockedTime;
+        }
     }
 
-    private class SpammerBehaviour extends OneShotBehaviour{
+    /**
+     * Send all messages as fast as possible, pausing only when out of credit.
+     */
+    private class SpammerBehaviour extends SimpleBehaviour {
 
         private static final long serialVersionUID = -8492387448755961987L;
-        /** List of known Message Consuming Agents (MCA) */
-        private AID[] MCAs;
+        private final Shard shard;
+        private final ACLMessage msg;
+        private Credits credits;
+        private int numOfMessagesSent = 0;
+
+        SpammerBehaviour(Shard shard) {
+            this.shard = shard;
+            this.msg = shard.msg;
+        }
+
+        @Override
+        public void onStart() {
+            credits = shard.credits;
+        }
 
         @Override
         public void action() {
+            while (numOfMessagesSent < numberOfMessages) {
+                int count = Math.min(messagesPerBatch, numberOfMessages - numOfMessagesSent);
+                int consumer = shard.route(numOfMessagesSent);
+                if (!credits.tryAcquire(consumer, count)) {
+                    // Wait for a grant message
+                    block();
+                    return;
+                }
+                setPayload(msg, numOfMessagesSent, null, count);
+                // Stamp each message so MCA's can measure end-to-end latency and ordering
+                SpamMessages.stamp(msg, numOfMessagesSent);
+                shard.send(consumer, count);
+                numOfMessagesSent += count;
+            }
+        }
 
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType("MessageConsumingAgent");
-            DFAgentDescription dfd = new DFAgentDescription();
-            dfd.addServices(sd);
+        @Override
+        public boolean done() {
+            return numOfMessagesSent >= numberOfMessages;
+        }
 
-            try {
-                DFAgentDescription[] result = DFService.search(myAgent, dfd);
-                logger.log(Logger.INFO, "Found " + result.length + " MCA's");
-                MCAs = new AID[result.length];
-                for (int i = 0; i < result.length; ++i) {
-                    MCAs[i] = result[i].getName();
+        @Override
+        public int onEnd() {
+            shard.done(credits);
+            return 0;
+        }
+    }
+
+    /**
+     * Send the messages on a fixed schedule of 'rate' messages per second (open
+     * loop), no matter how fast the MCA's consume them. Message i is due at
+     * start + i / rate, or at its time in the replayed journal. When the agent is late, the overdue messages are sent
+     * at once but keep their intended send time, so that the MCA's measure
+     * latency from the schedule and not from the late send. A batch is due
+     * when the last message packed in it is due. Being out of credit delays
+     * the messages, but not their schedule.
+     */
+    private class RateControlledSpammerBehaviour extends SimpleBehaviour {
+
+        private static final long serialVersionUID = 2203841519744916183L;
+        private final Shard shard;
+        private final ACLMessage msg;
+        /** Intended send time of each message of the next batch, in microseconds */
+        private long[] intendedTimes;
+        private Credits credits;
+        private long startTime;
+        private int numOfMessagesSent = 0;
+        /** Distribution of actual minus intended send time, in nanoseconds */
+        private final LatencyHistogram sendLag = new LatencyHistogram();
+
+        RateControlledSpammerBehaviour(Shard shard) {
+            this.shard = shard;
+            this.msg = shard.msg;
+        }
+
+        @Override
+        public void onStart() {
+            intendedTimes = new long[messagesPerBatch];
+            credits = shard.credits;
+            startTime = System.nanoTime();
+        }
+
+        @Override
+        public void action() {
+            long now = System.nanoTime();
+            long intendedTime = 0;
+            while (numOfMessagesSent < numberOfMessages) {
+                int count = Math.min(messagesPerBatch, numberOfMessages - numOfMessagesSent);
+                intendedTime = intendedSendTime(numOfMessagesSent + count - 1);
+                if (intendedTime > now) {
+                    break;
                 }
-            } catch (FIPAException e)
-            {
-                logger.log(Logger.SEVERE, "Cannot get MCA's", e);
+                int consumer = shard.route(numOfMessagesSent);
+                if (!credits.tryAcquire(consumer, count)) {
+                    // Wait for a grant message
+                    block();
+                    return;
+                }
+                sendLag.record(now - intendedTime);
+                if (messagesPerBatch > 1) {
+                    for (int i = 0; i < count; i++) {
+                        intendedTimes[i] = SpamMessages.toMicros(intendedSendTime(numOfMessagesSent + i));
+                    }
+                    setPayload(msg, numOfMessagesSent, intendedTimes, count);
+                    SpamMessages.stamp(msg, numOfMessagesSent);
+                } else {
+                    setPayload(msg, numOfMessagesSent, null, count);
+                    SpamMessages.stamp(msg, numOfMessagesSent, SpamMessages.toMicros(intendedTime));
+                }
+                shard.send(consumer, count);
+                numOfMessagesSent += count;
+                now = System.nanoTime();
+            }
+            long millisToNextMessage = (intendedTime - now) / 1000000;
+            if (numOfMessagesSent < numberOfMessages && millisToNextMessage > 0) {
+                // Sleep until the next message is due. Below one millisecond,
+                // which block() cannot express, the action is just run again.
+                block(millisToNextMessage);
             }
+        }
 
-            String content = "";
-            for (int i = 0; i < sizeOfEachMessage; i++) {
-                Random r = new Random();
-                content += (char)(r.nextInt(26) + 'a');
+        private long intendedSendTime(int message) {
+            if (replay != null) {
+                return startTime + replay.offsets[message];
             }
+            return startTime + (long) (message * 1000000000.0 / messagesPerSecond);
+        }
 
-            ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
-            for (AID MCA : MCAs) {
-                msg.addReceiver(MCA);
+        @Override
+        public boolean done() {
+            return numOfMessagesSent >= numberOfMessages;
+        }
+
+        @Override
+        public int onEnd() {
+            double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+            logger.log(Logger.INFO, "Agent " + getLocalName() + (shards.length > 1 ? " shard " + shard.index : "")
+                    + " - Sent " + numOfMessagesSent + " msg in " + seconds + "s ("
+                    + numOfMessagesSent / seconds + " msg/s, " + (replay != null ? "replayed" : "target " + messagesPerSecond + " msg/s") + ")."
+                    + " Send lag p50: " + sendLag.getValueAtPercentile(50.0) / 1000000.0 + "ms"
+                    + " p99: " + sendLag.getValueAtPercentile(99.0) / 1000000.0 + "ms"
+                    + " max: " + sendLag.getMax() / 1000000.0 + "ms");
+            shard.done(credits);
+            return 0;
+        }
+    }
+
+    /**
+     * Send warmup messages until the EMA ends the warmup, on the schedule of
+     * 'rate' if the SA has one or else as fast as the credits allow. Their
+     * payloads are taken in turn, numbered from 0. Each run of the action
+     * sends one message, so that the agent thread takes the messages of the
+     * EMA meanwhile.
+     */
+    private class WarmupBehaviour extends SimpleBehaviour {
+
+        private static final long serialVersionUID = -4215336590862291957L;
+        private final Shard shard;
+        private final ACLMessage msg;
+        private Credits credits;
+        private long startTime;
+        private int numOfMessagesSent = 0;
+
+        WarmupBehaviour(Shard shard) {
+            this.shard = shard;
+            this.msg = shard.msg;
+        }
+
+        @Override
+        public void onStart() {
+            shard.startWarmup();
+            credits = shard.credits;
+            startTime = System.nanoTime();
+        }
+
+        @Override
+        public void action() {
+            if (warmupOver) {
+                return;
             }
-            msg.setContent(content);
-            msg.setLanguage(LANGUAGE);
-            for (int i = 0; i < numberOfMessages; i++) {
-                myAgent.send(msg);
+            if (messagesPerSecond > 0) {
+                long millisToNextMessage = (startTime + (long) (numOfMessagesSent * 1000000000.0 / messagesPerSecond)
+                        - System.nanoTime()) / 1000000;
+                if (millisToNextMessage > 0) {
+                    block(millisToNextMessage);
+                    return;
+                }
             }
+            int consumer = shard.route(numOfMessagesSent);
+            if (!credits.tryAcquire(consumer, messagesPerBatch)) {
+                // Wait for a grant message, or for the end of the warmup
+                block();
+                return;
+            }
+            setPayload(msg, numOfMessagesSent, null, messagesPerBatch);
+            SpamMessages.stamp(msg, numOfMessagesSent);
+            shard.send(consumer, messagesPerBatch);
+            numOfMessagesSent += messagesPerBatch;
+        }
 
+        @Override
+        public boolean done() {
+            return warmupOver;
+        }
 
+        @Override
+        public int onEnd() {
+            shard.endWarmup();
+            return 0;
         }
     }
 }
@@ -0,0 +1,159 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Statistics of a whole experiment, merged by the ExperimentMasterAgent from
+ * the StatisticsRecord's of all agents as they arrive, so nothing is kept per
+ * record. Since records are cumulative, the DONE of a MCA and the REPORT of a
+ * SA are added to the totals, while a PROGRESS only replaces the progress
+ * last reported by its MCA. A SUMMARY is added like the DONE of all the MCA's
+ * merged in it, and its PROGRESS are those of its aggregator. A WARMUP is
+ * only counted apart, as the warmup is out of the measured window.
+ * Counters are summed, but those measured for the whole JVM (see
+ * StatisticsRecord.JVM_COUNTER) keep their maximum, as agents in the same
+ * JVM report the same values.
+ */
+final class StatisticsAggregator {
+
+    int numOfMessageConsumingAgentsDone = 0;
+    /** MCA's that left without their DONE, as counted by the aggregators */
+    int numOfMessageConsumingAgentsLost = 0;
+    long numOfMessagesConsumed = 0;
+    long numOfMessagesReordered = 0;
+    /** Distribution of the process time of all messages of all MCAs, in nanoseconds */
+    final LatencyHistogram processTimes = new LatencyHistogram();
+    /** Distribution of the send-to-consume time of all messages of all MCAs, in nanoseconds */
+    final LatencyHistogram endToEndTimes = new LatencyHistogram();
+    /** SA name -> nº of msg consumed from it by all MCAs */
+    final Map<String, Long> senders = new TreeMap<>();
+    /** Priority class -> nº of msg processed from it by all MCAs */
+    final Map<String, Long> classMessagesProcessed = new TreeMap<>();
+    /** Priority class -> distribution of the send-to-consume time of its messages, in nanoseconds */
+    final Map<String, LatencyHistogram> classEndToEndTimes = new TreeMap<>();
+    final Map<String, Long> counters = new TreeMap<>();
+    int numOfSpammerAgentsReported = 0;
+    long numOfMessagesSent = 0;
+    /** Sum of the time each SA was blocked by flow control, in nanoseconds */
+    long spammerBlockedTime = 0;
+    long longestSpammerBlockedTime = 0;
+    /** Bytes allocated by the SA's and by the MCA's over their measured windows (see MemoryAccount) */
+    long spammerAllocatedBytes = 0;
+    long consumerAllocatedBytes = 0;
+    /** MCA's done with the warmup, and the warmup msg they processed (see WarmupTracker) */
+    int numOfMessageConsumingAgentsWarm = 0;
+    long numOfWarmupMessagesConsumed = 0;
+    /** MCA name -> nº of msg processed in its last PROGRESS or DONE */
+    private final Map<String, Long> progress = new HashMap<>();
+    private long numOfMessagesInProgress = 0;
+
+    void add(String agent, StatisticsRecord record) {
+        switch (record.kind) {
+            case REPORT:
+                numOfSpammerAgentsReported++;
+                numOfMessagesSent += counter(record, StatisticsRecord.SENT);
+                long blockedTime = counter(record, StatisticsRecord.BLOCKED_TIME);
+                spammerBlockedTime += blockedTime;
+                longestSpammerBlockedTime = Math.max(longestSpammerBlockedTime, blockedTime);
+                spammerAllocatedBytes += counter(record, MemoryAccount.ALLOCATED_BYTES);
+                addCounters(record);
+                break;
+            case PROGRESS:
+                updateProgress(agent, record.numOfMessagesProcessed);
+                break;
+            case SUMMARY:
+                numOfMessageConsumingAgentsDone += counter(record, StatisticsRecord.CONSUMERS_DONE);
+                numOfMessageConsumingAgentsLost += counter(record, StatisticsRecord.CONSUMERS_LOST);
+                merge(agent, record);
+                break;
+            case DONE:
+                numOfMessageConsumingAgentsDone++;
+                merge(agent, record);
+                break;
+            case WARMUP:
+                numOfMessageConsumingAgentsWarm++;
+                numOfWarmupMessagesConsumed += record.numOfMessagesProcessed;
+                break;
+        }
+    }
+
+    private void merge(String agent, StatisticsRecord record) {
+        updateProgress(agent, record.numOfMessagesProcessed);
+        numOfMessagesConsumed += record.numOfMessagesProcessed;
+        numOfMessagesReordered += record.numOfMessagesReordered;
+        consumerAllocatedBytes += counter(record, MemoryAccount.ALLOCATED_BYTES);
+        processTimes.add(record.processTimes);
+        endToEndTimes.add(record.endToEndTimes);
+        addAll(senders, record.senders);
+        addAll(classMessagesProcessed, record.classMessagesProcessed);
+        for (Map.Entry<String, LatencyHistogram> entry : record.classEndToEndTimes.entrySet()) {
+            LatencyHistogram histogram = classEndToEndTimes.get(entry.getKey());
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                classEndToEndTimes.put(entry.getKey(), histogram);
+            }
+            histogram.add(entry.getValue());
+        }
+        addCounters(record);
+    }
+
+    /** Totals of the DONE and SUMMARY records added, as one record of the kind */
+    StatisticsRecord toRecord(StatisticsRecord.Kind kind) {
+        StatisticsRecord record = new StatisticsRecord(kind);
+        record.numOfMessagesProcessed = numOfMessagesConsumed;
+        record.numOfMessagesReordered = numOfMessagesReordered;
+        record.processTimes = processTimes;
+        record.endToEndTimes = endToEndTimes;
+        record.senders.putAll(senders);
+        record.classMessagesProcessed.putAll(classMessagesProcessed);
+        record.classEndToEndTimes.putAll(classEndToEndTimes);
+        record.counters.putAll(counters);
+        return record;
+    }
+
+    /** Bytes allocated per msg consumed, by the SA's or the MCA's */
+    double allocatedBytesPerMessage(long allocatedBytes) {
+        return numOfMessagesConsumed > 0 ? (double) allocatedBytes / numOfMessagesConsumed : 0.0;
+    }
+
+    long counter(String name) {
+        Long value = counters.get(name);
+        return value != null ? value : 0;
+    }
+
+    /** Nº of msg processed by all MCAs, as last reported by each, DONE or not */
+    long progress() {
+        return numOfMessagesInProgress;
+    }
+
+    private void updateProgress(String agent, long numOfMessagesProcessed) {
+        Long previous = progress.put(agent, numOfMessagesProcessed);
+        numOfMessagesInProgress += numOfMessagesProcessed - (previous != null ? previous : 0);
+    }
+
+    private void addCounters(StatisticsRecord record) {
+        for (Map.Entry<String, Long> entry : record.counters.entrySet()) {
+            Long value = counters.get(entry.getKey());
+            if (value == null) {
+                counters.put(entry.getKey(), entry.getValue());
+            } else if (entry.getKey().startsWith(StatisticsRecord.JVM_COUNTER)) {
+                counters.put(entry.getKey(), Math.max(value, entry.getValue()));
+            } else {
+                counters.put(entry.getKey(), value + entry.getValue());
+            }
+        }
+    }
+
+    private static void addAll(Map<String, Long> totals, Map<String, Long> values) {
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            Long total = totals.get(entry.getKey());
+            totals.put(entry.getKey(), (total != null ? total : 0) + entry.getValue());
+        }
+    }
+
+    /** Counter of the record, 0 if it has none */
+    static long counter(StatisticsRecord record, String name) {
+        Long value = record.counters.get(name);
+        return value != null ? value : 0;
+    }
+}
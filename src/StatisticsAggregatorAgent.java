@@ -0,0 +1,251 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.util.Logger;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Statistics Aggregator Agent. Merges the statistics of the MCA's of its
+ * container, so that the EMA receives one record per container instead of one
+ * per MCA: MCA's send their records to it when started with aggregator=NAME.
+ * It sends to the EMA:
+ * - PROGRESS: the messages processed by all of them, every 'progress' seconds
+ *   while it changes.
+ * - SUMMARY: the merge of their DONE records, once every MCA seen in the DF
+ *   reporting to it is done or lost, i.e. it left the DF without sending its
+ *   DONE, or 'timeout' seconds after the first DONE, the missing ones counted
+ *   as lost.
+ * Other records are relayed unchanged. It aggregates one experiment: DONE
+ * records arriving after the SUMMARY are dropped, they were counted as lost.
+ * The MCA's register in the DF with its name (see DirectoryCache.AGGREGATOR),
+ * so that it and the EMA know which MCA's it covers. The EMA counts them as
+ * lost if it dies before its SUMMARY.
+ * Run:
+ * java jade.Boot -container StatisticsAggregator:StatisticsAggregatorAgent([options])
+ * Options (key=value):
+ * - progress: seconds between PROGRESS records to the EMA, 0 for none. Default 1.
+ * - timeout: seconds to wait for the remaining MCA's after the first DONE.
+ *   Default 0, wait until they are done or lost.
+ * - master: local name of the EMA. Default ExperimentMasterAgent.
+ * - metrics: how live metrics are exposed: jmx, off or http:PORT (see AgentMetrics).
+ *   Default jmx. The messages received are those consumed by the MCA's of the
+ *   container, as reported in their records.
+ * - metricsWindow: seconds covered by the live rates. Default 10.
+ */
+public class StatisticsAggregatorAgent extends Agent {
+
+    private final Logger logger = Logger.getMyLogger(getClass().getName());
+    private static final long serialVersionUID = -3893618094637402561L;
+    static final String SERVICE_TYPE = "StatisticsAggregator";
+
+    private AID master;
+
+    /** Milliseconds between PROGRESS records */
+    private long progressPeriod;
+
+    /** Nanoseconds to wait for the remaining MCA's after the first DONE, or 0 */
+    private long timeout;
+
+    private AgentMetrics metrics;
+
+    /** MCA's registered in the DF, of all containers */
+    private DirectoryCache messageConsumingAgents;
+
+    private final StatisticsAggregator statistics = new StatisticsAggregator();
+
+    /** MCA's reporting to it seen in the DF, and those done or lost */
+    private final Set<String> consumers = new LinkedHashSet<>();
+    private final Set<String> done = new HashSet<>();
+    private final Set<String> lost = new HashSet<>();
+
+    /** System.nanoTime() of the first DONE, or -1 */
+    private long firstDoneTime = -1;
+
+    private long progressSent = 0;
+
+    private boolean summarized = false;
+
+    @Override
+    protected void setup() {
+        try {
+            AgentArguments options = new AgentArguments(getArguments(), 0);
+            master = StatisticsRecord.receiver(options.get("master", null));
+            progressPeriod = (long) (options.getDouble("progress", 1.0) * 1000);
+            timeout = (long) (options.getDouble("timeout", 0.0) * 1000000000);
+            metrics = new AgentMetrics(this, options.getInt("metricsWindow", 10));
+            metrics.expose(options.get("metrics", "jmx"), logger);
+        } catch (IllegalArgumentException e) {
+            logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Incorrect arguments", e);
+            doDelete();
+            return;
+        }
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(SERVICE_TYPE);
+        sd.setName("StatisticsAggregatorService");
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.setName(getAID());
+        dfd.addServices(sd);
+        messageConsumingAgents = new DirectoryCache(this, "MessageConsumingAgent");
+        try {
+            DFService.register(this, dfd);
+            messageConsumingAgents.subscribe();
+        } catch (FIPAException e) {
+            logger.log(Logger.SEVERE, "Agent " + getLocalName() + " - Cannot register with DF", e);
+            doDelete();
+            return;
+        }
+        addBehaviour(messageConsumingAgents);
+        // Follows the MCA's whenever they change in the DF
+        CyclicBehaviour follow = new CyclicBehaviour(this) {
+            private static final long serialVersionUID = -2349166325904867120L;
+
+            @Override
+            public void action() {
+                checkComplete();
+                block();
+            }
+        };
+        messageConsumingAgents.restartOnChange(follow);
+        addBehaviour(follow);
+        addBehaviour(metrics);
+        addBehaviour(new ReceiveRecordsBehaviour());
+        // Also checks the timeout and the MCA's lost, every second without progress
+        addBehaviour(new TickerBehaviour(this, progressPeriod > 0 ? progressPeriod : 1000) {
+            private static final long serialVersionUID = 6215170420936851843L;
+
+            @Override
+            protected void onTick() {
+                if (summarized) {
+                    stop();
+                    return;
+                }
+                if (statistics.progress() != progressSent && progressPeriod > 0) {
+                    StatisticsRecord record = new StatisticsRecord(StatisticsRecord.Kind.PROGRESS);
+                    record.numOfMessagesProcessed = statistics.progress();
+                    record.send(myAgent, master);
+                    progressSent = record.numOfMessagesProcessed;
+                }
+                checkComplete();
+            }
+        });
+    }
+
+    @Override
+    protected void takeDown() {
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException e) {
+            logger.log(Logger.FINE, "Agent " + getLocalName() + " - Not registered with DF", e);
+        }
+        if (messageConsumingAgents != null) {
+            messageConsumingAgents.close();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+    }
+
+    /** Follow the MCA's reporting to it in the DF, those leaving before their DONE are lost */
+    private void updateConsumers() {
+        for (String name : messageConsumingAgents.names()) {
+            if (!consumers.contains(name) && getName().equals(messageConsumingAgents.propertyOf(name, DirectoryCache.AGGREGATOR))) {
+                consumers.add(name);
+            }
+        }
+        for (String name : consumers) {
+            if (!done.contains(name) && !lost.contains(name) && !messageConsumingAgents.names().contains(name)) {
+                logger.log(Logger.WARNING, "Agent " + getLocalName() + " - " + name + " left without its DONE");
+                lost.add(name);
+            }
+        }
+    }
+
+    /**
+     * Send the SUMMARY once all MCA's seen are accounted for, even with no
+     * DONE if all are lost, or the timeout has expired.
+     */
+    private void checkComplete() {
+        if (summarized) {
+            return;
+        }
+        // From setup on, so that those leaving early are not missed
+        updateConsumers();
+        boolean expired = firstDoneTime >= 0 && timeout > 0 && System.nanoTime() - firstDoneTime > timeout;
+        if ((consumers.isEmpty() || done.size() + lost.size() < consumers.size()) && !expired) {
+            return;
+        }
+        for (String name : consumers) {
+            if (!done.contains(name) && !lost.contains(name)) {
+                logger.log(Logger.WARNING, "Agent " + getLocalName() + " - " + name + " not done in time");
+                lost.add(name);
+            }
+        }
+        StatisticsRecord summary = statistics.toRecord(StatisticsRecord.Kind.SUMMARY);
+        summary.counters.put(StatisticsRecord.CONSUMERS_DONE, (long) done.size());
+        summary.counters.put(StatisticsRecord.CONSUMERS_LOST, (long) lost.size());
+        summary.send(this, master);
+        summarized = true;
+        logger.log(Logger.INFO, "Agent " + getLocalName() + " - Summary of " + done.size() + " MCAs done, " + lost.size() + " lost: "
+                + summary.numOfMessagesProcessed + " msg");
+    }
+
+    /** Merge the DONE and PROGRESS records of the MCA's, relay the others */
+    private class ReceiveRecordsBehaviour extends CyclicBehaviour {
+
+        private static final long serialVersionUID = -1177905513367052935L;
+        private final MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.MatchLanguage(StatisticsRecord.LANGUAGE));
+
+        @Override
+        public void action() {
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                block();
+                return;
+            }
+            StatisticsRecord record;
+            try {
+                record = StatisticsRecord.fromBytes(msg.getByteSequenceContent());
+            } catch (IOException e) {
+                logger.log(Logger.WARNING, "Invalid statistics from " + msg.getSender().getName(), e);
+                return;
+            }
+            String sender = msg.getSender().getName();
+            if (record.kind != StatisticsRecord.Kind.DONE && record.kind != StatisticsRecord.Kind.PROGRESS) {
+                record.send(myAgent, master);
+                return;
+            }
+            if (summarized) {
+                if (record.kind == StatisticsRecord.Kind.DONE) {
+                    logger.log(Logger.WARNING, "Agent " + getLocalName() + " - DONE of " + sender + " after the summary");
+                }
+                return;
+            }
+            long consumed = statistics.progress();
+            statistics.add(sender, record);
+            metrics.received(statistics.progress() - consumed);
+            if (record.kind == StatisticsRecord.Kind.DONE) {
+                if (firstDoneTime < 0) {
+                    firstDoneTime = System.nanoTime();
+                }
+                // Covered by this aggregator even if not seen in the DF yet
+                consumers.add(sender);
+                done.add(sender);
+                // Not lost if it left before its DONE was read
+                lost.remove(sender);
+                checkComplete();
+            }
+        }
+    }
+}
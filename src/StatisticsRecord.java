@@ -0,0 +1,232 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics an agent reports to the ExperimentMasterAgent, sent as the byte
+ * sequence content of an INFORM in LANGUAGE. Records are cumulative: each
+ * one holds everything the agent measured since it started. Kinds:
+ * - DONE: final statistics of a MCA, once all its messages are processed.
+ * - PROGRESS: intermediate statistics of a MCA during a long run.
+ * - REPORT: statistics of a SA, once all its messages are sent.
+ * - SUMMARY: merge of the DONE records of the MCA's of a container, sent by
+ *   its StatisticsAggregatorAgent, counting the MCA's done and lost in
+ *   CONSUMERS_DONE and CONSUMERS_LOST.
+ * - WARMUP: nº of warmup msg processed by a MCA, once all are, always sent
+ *   to the EMA (see WarmupTracker). Nothing else is measured in the warmup.
+ * Layout, big endian: MAGIC (int), VERSION (byte), code of the kind (byte,
+ * see Kind), nº of msg processed and reordered (long), the process and
+ * end-to-end time histograms (see LatencyHistogram.writeTo), then three maps,
+ * each as its size (int) followed by its entries: SA name -> nº of msg (UTF,
+ * long), priority class name -> nº of msg (UTF, long) and its end-to-end time
+ * histogram, and counter name -> value (UTF, long).
+ * VERSION changes with the layout or the kinds, so that agents of another
+ * build reject the records instead of misreading them. Version 2 added
+ * WARMUP and explicit kind codes.
+ * Counters carry anything else, e.g. memory usage (see MemoryAccount), so
+ * that they can be added without a new version. Counters prefixed with
+ * JVM_COUNTER are measured for the whole JVM rather than for the agent.
+ */
+final class StatisticsRecord {
+
+    static final String LANGUAGE = "spam-statistics";
+    static final int MAGIC = 0x53504d53;
+    static final byte VERSION = 2;
+    static final String JVM_COUNTER = "jvm.";
+    /**
+     * Counters of the REPORT of a SA: nº of msg sent, time blocked by flow
+     * control and time spent in send() in nanoseconds. With fan-out, the nº
+     * of msg sent and the time spent sending are also reported per shard,
+     * prefixed by SHARD and its index, e.g. shard.0.sent.
+     */
+    static final String SENT = "sent";
+    static final String BLOCKED_TIME = "flowcontrol.blocked.ns";
+    static final String SEND_TIME = "send.ns";
+    static final String SHARD = "shard.";
+    /**
+     * Counters of the REPORT of a SA: nº of payloads delivered, i.e. sent to
+     * each of their receivers, which is the nº of msg the MCA's consume. A SA
+     * distributing its messages also reports the payloads sent to each MCA,
+     * prefixed by CONSUMER, e.g. consumer.MCA1@platform.sent.
+     */
+    static final String DELIVERED = "delivered";
+    static final String CONSUMER = "consumer.";
+    /**
+     * Counters of the placement of a MCA: nº of msg processed from SA's in
+     * the same container and in other containers, and nº of msg processed in
+     * its container, prefixed by CONTAINER, e.g. container.Container-1.consumed.
+     */
+    static final String INTRA_CONTAINER = "consumed.intra-container";
+    static final String INTER_CONTAINER = "consumed.inter-container";
+    static final String CONTAINER = "container.";
+    static final String CONSUMED = ".consumed";
+    /**
+     * Counters of a MCA shedding messages under overload: nº of msg shed, in
+     * total and per priority class, prefixed by SHED_CLASS, e.g. shed.class.default.
+     */
+    static final String SHED = "shed";
+    static final String SHED_CLASS = "shed.class.";
+    /** Counters of a SUMMARY: nº of MCA's merged in it and nº of MCA's that left without their DONE */
+    static final String CONSUMERS_DONE = "consumers.done";
+    static final String CONSUMERS_LOST = "consumers.lost";
+    /** Local name of the agent records are sent to by default */
+    static final String MASTER = "ExperimentMasterAgent";
+
+    /** Kinds of record, each written as its code, which must never change */
+    enum Kind {
+        DONE(1), PROGRESS(2), REPORT(3), SUMMARY(4), WARMUP(5);
+
+        final byte code;
+
+        Kind(int code) {
+            this.code = (byte) code;
+        }
+
+        /** @return the kind, or null if the code is unknown */
+        static Kind of(byte code) {
+            for (Kind kind : values()) {
+                if (kind.code == code) {
+                    return kind;
+                }
+            }
+            return null;
+        }
+    }
+
+    final Kind kind;
+    long numOfMessagesProcessed;
+    long numOfMessagesReordered;
+    /** Distribution of the time to process each message, in nanoseconds */
+    LatencyHistogram processTimes = new LatencyHistogram();
+    /** Distribution of the time from send to consumption of each message, in nanoseconds */
+    LatencyHistogram endToEndTimes = new LatencyHistogram();
+    /** SA name -> nº of msg processed from it */
+    final Map<String, Long> senders = new LinkedHashMap<>();
+    /** Priority class -> nº of msg processed from it */
+    final Map<String, Long> classMessagesProcessed = new LinkedHashMap<>();
+    /** Priority class -> distribution of the send-to-consume time of its messages, in nanoseconds */
+    final Map<String, LatencyHistogram> classEndToEndTimes = new LinkedHashMap<>();
+    final Map<String, Long> counters = new LinkedHashMap<>();
+
+    StatisticsRecord(Kind kind) {
+        this.kind = kind;
+    }
+
+    /**
+     * Add the placement counters of a MCA running in the container, once the
+     * senders are filled in. SA's of unknown container count as in other
+     * containers.
+     */
+    void addPlacementCounters(String container, DirectoryCache spammerAgents) {
+        long intraContainer = 0;
+        long interContainer = 0;
+        for (Map.Entry<String, Long> sender : senders.entrySet()) {
+            if (container.equals(spammerAgents.propertyOf(sender.getKey(), DirectoryCache.CONTAINER))) {
+                intraContainer += sender.getValue();
+            } else {
+                interContainer += sender.getValue();
+            }
+        }
+        counters.put(INTRA_CONTAINER, intraContainer);
+        counters.put(INTER_CONTAINER, interContainer);
+        counters.put(CONTAINER + container + CONSUMED, numOfMessagesProcessed);
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(kind.code);
+            out.writeLong(numOfMessagesProcessed);
+            out.writeLong(numOfMessagesReordered);
+            processTimes.writeTo(out);
+            endToEndTimes.writeTo(out);
+            out.writeInt(senders.size());
+            for (Map.Entry<String, Long> entry : senders.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(classMessagesProcessed.size());
+            for (Map.Entry<String, Long> entry : classMessagesProcessed.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+                LatencyHistogram histogram = classEndToEndTimes.get(entry.getKey());
+                (histogram != null ? histogram : new LatencyHistogram()).writeTo(out);
+            }
+            out.writeInt(counters.size());
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the bytes are not a record of a supported version
+     */
+    static StatisticsRecord fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a statistics record");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported statistics record version: " + version);
+        }
+        byte code = in.readByte();
+        Kind kind = Kind.of(code);
+        if (kind == null) {
+            throw new IOException("Unknown statistics record kind: " + code);
+        }
+        StatisticsRecord record = new StatisticsRecord(kind);
+        record.numOfMessagesProcessed = in.readLong();
+        record.numOfMessagesReordered = in.readLong();
+        record.processTimes = LatencyHistogram.readFrom(in);
+        record.endToEndTimes = LatencyHistogram.readFrom(in);
+        for (int i = in.readInt(); i > 0; i--) {
+            record.senders.put(in.readUTF(), in.readLong());
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            String name = in.readUTF();
+            record.classMessagesProcessed.put(name, in.readLong());
+            record.classEndToEndTimes.put(name, LatencyHistogram.readFrom(in));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            record.counters.put(in.readUTF(), in.readLong());
+        }
+        return record;
+    }
+
+    /** Send the record to the ExperimentMasterAgent */
+    void send(Agent agent) {
+        send(agent, receiver(null));
+    }
+
+    /** Send the record to the agent, the EMA or a StatisticsAggregatorAgent */
+    void send(Agent agent, AID receiver) {
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.addReceiver(receiver);
+        msg.setLanguage(LANGUAGE);
+        msg.setByteSequenceContent(toBytes());
+        agent.send(msg);
+    }
+
+    /** Agent to send the records to: the one with the local name, or the EMA if null */
+    static AID receiver(String localName) {
+        return new AID(localName != null ? localName : MASTER, AID.ISLOCALNAME);
+    }
+}
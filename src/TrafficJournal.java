@@ -0,0 +1,248 @@
+import jade.lang.acl.ACLMessage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only binary journal of the spam messages sent or consumed by one
+ * agent, written to a memory-mapped file DIR/NAME.journal, so that recording
+ * costs a copy to memory and no system call per message. The file is mapped
+ * CHUNK bytes at a time; it is cut to its records when closed. A journal of a
+ * SA can be replayed by another run (see Trace).
+ * Layout, big endian: MAGIC and VERSION (int), then records, each starting
+ * with its kind (byte):
+ * - NAME: id (int), length (int) and UTF-8 bytes of an agent name, or of the
+ *   receivers of a message joined by ','. Written before the first record
+ *   using the id.
+ * - SENT, CONSUMED: id of the peer, i.e. the receivers of a SENT message and
+ *   the sender of a CONSUMED one (int), sequence number (long), nº of payloads
+ *   (int, more than 1 for a batch), bytes of content (int), send time in
+ *   microseconds as stamped by the SA (long, see SpamMessages) and the time
+ *   it was consumed, or -1 for a SENT message (long).
+ * A kind 0 ends the records, as in the zeros after the last record of a
+ * journal that was not closed.
+ * It can be used from any thread; records are appended under its lock.
+ * Records after close() are dropped, as the shards of a SA or the workers of
+ * a MCA may still be sending or consuming messages when it is taken down.
+ */
+final class TrafficJournal {
+
+    static final int MAGIC = 0x53504a4c;
+    static final int VERSION = 1;
+    static final String EXTENSION = ".journal";
+
+    private static final byte END = 0;
+    private static final byte NAME = 1;
+    private static final byte SENT = 2;
+    private static final byte CONSUMED = 3;
+    private static final int EVENT_SIZE = 1 + 4 + 8 + 4 + 4 + 8 + 8;
+    private static final int CHUNK = 8 * 1024 * 1024;
+
+    private final Path file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    /** Region of the file being written, starting at mappedStart */
+    private MappedByteBuffer buffer;
+    private long mappedStart = 0;
+    /** Name -> its id */
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private TrafficJournal(Path file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file.toFile(), "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHUNK);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+    }
+
+    /**
+     * Create the journal of the agent in the directory, replacing any
+     * previous one.
+     * @param directory directory of the journal, or null for none
+     * @return the journal, or null if directory is null
+     */
+    static TrafficJournal open(String directory, String agentName) throws IOException {
+        if (directory == null) {
+            return null;
+        }
+        Files.createDirectories(Paths.get(directory));
+        return new TrafficJournal(Paths.get(directory, agentName + EXTENSION));
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /** Id of the name, writing it to the journal the first time, or -1 if it is new and the journal closed */
+    synchronized int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            if (!channel.isOpen()) {
+                return -1;
+            }
+            id = ids.size();
+            ids.put(name, id);
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            reserve(1 + 4 + 4 + bytes.length);
+            buffer.put(NAME);
+            buffer.putInt(id);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        return id;
+    }
+
+    /**
+     * Record a spam message right after it was sent.
+     * @param receivers id of its receivers (see idOf)
+     */
+    synchronized void sent(int receivers, ACLMessage msg) {
+        append(SENT, receivers, msg, -1);
+    }
+
+    /** Record a spam message consumed now */
+    synchronized void consumed(ACLMessage msg) {
+        append(CONSUMED, idOf(msg.getSender().getName()), msg, SpamMessages.currentTimeMicros());
+    }
+
+    private void append(byte kind, int peer, ACLMessage msg, long consumeTime) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        byte[] content = msg.getByteSequenceContent();
+        reserve(EVENT_SIZE);
+        buffer.put(kind);
+        buffer.putInt(peer);
+        buffer.putLong(SpamMessages.sequenceOf(msg));
+        buffer.putInt(SpamBatch.payloadCount(msg));
+        buffer.putInt(content != null ? content.length : 0);
+        buffer.putLong(SpamMessages.sendTimeOf(msg));
+        buffer.putLong(consumeTime);
+    }
+
+    /** Map the next region of the file if the record does not fit in this one */
+    private void reserve(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        try {
+            mappedStart += buffer.position();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, mappedStart, Math.max(CHUNK, bytes));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot extend journal " + file, e);
+        }
+    }
+
+    /** Flush the records and cut the file after the last one */
+    synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        buffer.force();
+        long length = mappedStart + buffer.position();
+        try {
+            channel.truncate(length);
+        } catch (IOException e) {
+            // Some platforms cannot cut a mapped file, the records end with zeros then
+        }
+        raf.close();
+    }
+
+    /**
+     * Schedule of the messages of a SA journal, for the SA to send them again
+     * with the same timing: the first SENT record of each sequence number, as
+     * every shard of the SA sends the same messages. Messages keep their
+     * order, their batches and their time from the first send.
+     */
+    static final class Trace {
+
+        /** Time of each message from the first send, in nanoseconds, the payloads of a batch sharing it */
+        final long[] offsets;
+        /** Payloads packed in each message, that of the first one */
+        final int batch;
+        /** Length of each payload */
+        final int size;
+
+        private Trace(long[] offsets, int batch, int size) {
+            this.offsets = offsets;
+            this.batch = batch;
+            this.size = size;
+        }
+
+        /**
+         * @throws IllegalArgumentException if it is not a journal or it has no SENT record
+         */
+        static Trace read(String path) throws IOException {
+            ByteBuffer records;
+            try (FileChannel channel = FileChannel.open(Paths.get(path))) {
+                records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (records.remaining() < 8 || records.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a journal: " + path);
+            }
+            int version = records.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported journal version " + version + ": " + path);
+            }
+            List<long[]> sends = new ArrayList<>();
+            BitSet sequences = new BitSet();
+            int batch = 0;
+            int contentLength = 0;
+            long firstSendTime = 0;
+            int messages = 0;
+            while (records.hasRemaining()) {
+                byte kind = records.get();
+                if (kind == END) {
+                    break;
+                } else if (kind == NAME) {
+                    records.getInt();
+                    int length = records.getInt();
+                    records.position(records.position() + length);
+                    continue;
+                }
+                records.getInt();
+                long sequence = records.getLong();
+                int count = records.getInt();
+                int length = records.getInt();
+                long sendTime = records.getLong();
+                records.getLong();
+                if (kind != SENT || sequence < 0 || sequences.get((int) sequence)) {
+                    continue;
+                }
+                sequences.set((int) sequence);
+                if (sends.isEmpty()) {
+                    batch = count;
+                    contentLength = length;
+                    firstSendTime = sendTime;
+                }
+                sends.add(new long[]{(sendTime - firstSendTime) * 1000, count});
+                messages += count;
+            }
+            if (sends.isEmpty()) {
+                throw new IllegalArgumentException("No message sent in journal: " + path);
+            }
+            long[] offsets = new long[messages];
+            int message = 0;
+            for (long[] send : sends) {
+                for (int i = 0; i < send[1]; i++) {
+                    offsets[message++] = Math.max(send[0], 0);
+                }
+            }
+            return new Trace(offsets, batch, batch > 1 ? SpamBatch.payloadLength(contentLength, batch) : contentLength);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.util.Collection;
+
+/**
+ * Consumer side of the warmup phase of an experiment (see the warmup option
+ * of ExperimentMasterAgent). SA's first send warmup messages (see
+ * SpamMessages.WARMUP) until the EMA ends the warmup, then tell each MCA how
+ * many payloads they sent it with a WARM message, an INFORM in
+ * SpamMessages.WARM_LANGUAGE. A MCA processes warmup messages like the
+ * others, so that class loading and JIT compilation happen then, but leaves
+ * them out of its statistics and of the nº of msg expected from each SA.
+ * Once it has processed the warmup messages of every SA, it sends a WARMUP
+ * record to the EMA, which starts the measured window when all MCA's have.
+ * It must only be used from the agent thread.
+ */
+final class WarmupTracker {
+
+    private final Agent agent;
+    /** SA -> warmup payloads processed, and those it told it sent */
+    private final SenderRegister register = new SenderRegister(1, SenderRegister.UNTOLD);
+    private long numOfMessagesProcessed = 0;
+    private boolean reported = false;
+
+    WarmupTracker(Agent agent) {
+        this.agent = agent;
+    }
+
+    /** Account 'count' warmup payloads of the SA processed */
+    void processed(AID sender, int count) {
+        register.add(register.slotOf(sender), count);
+        numOfMessagesProcessed += count;
+    }
+
+    /**
+     * Take the WARM messages out of the mailbox, and send the WARMUP record
+     * once the warmup messages of all the SA's have been processed.
+     * @return whether the record has been sent
+     */
+    boolean check(Collection<String> senders) {
+        if (reported) {
+            return true;
+        }
+        ACLMessage warm = agent.receive(SpamMessages.WARM_TEMPLATE);
+        while (warm != null) {
+            register.expect(register.slotOf(warm.getSender()), Integer.parseInt(warm.getContent()));
+            warm = agent.receive(SpamMessages.WARM_TEMPLATE);
+        }
+        if (!register.isComplete(senders)) {
+            return false;
+        }
+        StatisticsRecord record = new StatisticsRecord(StatisticsRecord.Kind.WARMUP);
+        record.numOfMessagesProcessed = numOfMessagesProcessed;
+        record.send(agent);
+        reported = true;
+        return true;
+    }
+}